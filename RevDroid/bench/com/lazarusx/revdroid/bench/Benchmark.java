@@ -0,0 +1,37 @@
+package com.lazarusx.revdroid.bench;
+
+/**
+ * A single benchmark. The state built by {@link #setUp()} is shared by all
+ * operations, so every operation has to leave it as it found it.
+ */
+public abstract class Benchmark {
+	private final String name;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Builds the state of the benchmark. Not measured.
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * Runs one operation
+	 *
+	 * @return A value depending on the work done so that the JIT cannot
+	 *         eliminate it
+	 */
+	public abstract Object run() throws Exception;
+
+	/**
+	 * Releases the state of the benchmark. Not measured.
+	 */
+	public void tearDown() throws Exception {
+	}
+}
@@ -0,0 +1,205 @@
+package com.lazarusx.revdroid.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs benchmarks with warmup and measurement iterations of fixed duration
+ * and reports the mean time per operation.
+ *
+ * The tree has no build manifest JMH could be added to, so this runner
+ * takes the precautions JMH would: every benchmark is run in bench.forks
+ * fresh JVMs of its own, so the JIT profile of one benchmark cannot skew
+ * another and warmup happens in every fork, and the result of every
+ * operation is written to a volatile sink, so the JIT cannot eliminate the
+ * work. The forks get the JVM arguments of the runner, including the
+ * bench.* properties.
+ */
+public class BenchmarkRunner {
+	private static final String FORK = "--fork";
+	// Marks the lines of a fork's standard output which carry its scores
+	private static final String SCORES_PREFIX = "SCORES ";
+
+	private final int warmupIterations;
+	private final int measurementIterations;
+	private final long iterationTime;
+	// Keeps the results of the operations alive
+	private volatile int sink;
+
+	/**
+	 * @param warmupIterations
+	 *            The number of iterations run before measuring
+	 * @param measurementIterations
+	 *            The number of iterations measured
+	 * @param iterationTime
+	 *            The minimum duration of an iteration in milliseconds
+	 */
+	public BenchmarkRunner(int warmupIterations, int measurementIterations,
+			long iterationTime) {
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.iterationTime = iterationTime;
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<Benchmark> benchmarks = Benchmarks.create();
+		if (args.length == 2 && args[0].equals(FORK)) {
+			System.exit(runFork(benchmarks, args[1]));
+		}
+
+		if (args.length == 0) {
+			System.out.println("Usage: BenchmarkRunner <benchmark>... | all");
+			System.out.println("Benchmarks:");
+			for (Benchmark benchmark : benchmarks)
+				System.out.println("\t" + benchmark.getName());
+			return;
+		}
+
+		List<Benchmark> selected = new ArrayList<Benchmark>();
+		for (Benchmark benchmark : benchmarks)
+			for (String arg : args)
+				if (arg.equals("all") || benchmark.getName().startsWith(arg)) {
+					selected.add(benchmark);
+					break;
+				}
+
+		int forks = Integer.getInteger("bench.forks", 3);
+		System.out.println(String.format(Locale.ROOT, "%-20s %8s %14s %14s",
+				"Benchmark", "Cnt", "Score (ns/op)", "Error"));
+		for (Benchmark benchmark : selected) {
+			List<Double> scores = new ArrayList<Double>();
+			for (int i = 0; i < forks; i++)
+				scores.addAll(fork(benchmark.getName()));
+			report(benchmark.getName(), scores);
+		}
+	}
+
+	/**
+	 * Runs a benchmark in a new JVM
+	 *
+	 * @return The scores of the measurement iterations
+	 */
+	private static List<Double> fork(String name) throws IOException,
+			InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + "/bin/java");
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(BenchmarkRunner.class.getName());
+		command.add(FORK);
+		command.add(name);
+
+		Process process = new ProcessBuilder(command).redirectError(
+				ProcessBuilder.Redirect.INHERIT).start();
+		List<Double> scores = null;
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				process.getInputStream()));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.startsWith(SCORES_PREFIX))
+					continue;
+				scores = new ArrayList<Double>();
+				for (String score : line.substring(SCORES_PREFIX.length())
+						.split(" "))
+					scores.add(Double.parseDouble(score));
+			}
+		} finally {
+			in.close();
+		}
+
+		if (process.waitFor() != 0 || scores == null)
+			throw new IOException("Fork of " + name + " failed");
+		return scores;
+	}
+
+	/**
+	 * Runs a single benchmark in this JVM and prints its scores
+	 *
+	 * @return The exit status of the fork
+	 */
+	private static int runFork(List<Benchmark> benchmarks, String name)
+			throws Exception {
+		BenchmarkRunner runner = new BenchmarkRunner(
+				Integer.getInteger("bench.warmup", 5),
+				Integer.getInteger("bench.iterations", 10),
+				Long.getLong("bench.iterationTime", 1000));
+		for (Benchmark benchmark : benchmarks) {
+			if (!benchmark.getName().equals(name))
+				continue;
+
+			StringBuilder sb = new StringBuilder(SCORES_PREFIX);
+			for (double score : runner.run(benchmark)) {
+				if (sb.length() > SCORES_PREFIX.length())
+					sb.append(' ');
+				sb.append(score);
+			}
+			System.out.println(sb);
+			return 0;
+		}
+		System.err.println("Unknown benchmark " + name);
+		return 2;
+	}
+
+	private static void report(String name, List<Double> scores) {
+		double mean = 0;
+		for (double score : scores)
+			mean += score;
+		mean /= scores.size();
+		double variance = 0;
+		for (double score : scores)
+			variance += (score - mean) * (score - mean);
+		double deviation = scores.size() > 1 ? Math.sqrt(variance
+				/ (scores.size() - 1)) : 0;
+
+		System.out.println(String.format(Locale.ROOT,
+				"%-20s %8d %14.1f %14.1f", name, scores.size(), mean,
+				deviation));
+	}
+
+	/**
+	 * Runs the warmup and measurement iterations of a benchmark
+	 *
+	 * @return The mean time per operation of every measurement iteration in
+	 *         nanoseconds
+	 */
+	public double[] run(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		try {
+			for (int i = 0; i < this.warmupIterations; i++)
+				iterate(benchmark);
+
+			double[] scores = new double[this.measurementIterations];
+			for (int i = 0; i < this.measurementIterations; i++)
+				scores[i] = iterate(benchmark);
+			return scores;
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+
+	/**
+	 * Runs operations until the iteration time has elapsed
+	 *
+	 * @return The mean time per operation in nanoseconds
+	 */
+	private double iterate(Benchmark benchmark) throws Exception {
+		long deadline = System.nanoTime() + this.iterationTime * 1000000L;
+		long operations = 0;
+		long start = System.nanoTime();
+		long now;
+		do {
+			Object result = benchmark.run();
+			this.sink = result == null ? 0 : result.hashCode();
+			operations++;
+			now = System.nanoTime();
+		} while (now < deadline);
+		return (double) (now - start) / operations;
+	}
+}
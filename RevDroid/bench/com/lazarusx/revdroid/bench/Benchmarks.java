@@ -0,0 +1,373 @@
+package com.lazarusx.revdroid.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import soot.Body;
+import soot.Scene;
+import soot.SootMethod;
+import soot.jimple.Stmt;
+
+import com.lazarusx.revdroid.analyzer.AndroidMethod;
+import com.lazarusx.revdroid.analyzer.CallerIndex;
+import com.lazarusx.revdroid.analyzer.CompactDeadAssignmentEliminator;
+import com.lazarusx.revdroid.analyzer.GuardAnalysis;
+import com.lazarusx.revdroid.analyzer.PScoutParser;
+import com.lazarusx.revdroid.analyzer.PScoutStore;
+import com.lazarusx.revdroid.analyzer.ProactiveCheckIndex;
+import com.lazarusx.revdroid.analyzer.RevDroidDeadAssignmentEliminator;
+import com.lazarusx.revdroid.analyzer.SensitiveMethodIndex;
+
+/**
+ * The benchmarks of the analysis phases. Sizes are read from system
+ * properties, so the same benchmark can be run against small and large
+ * inputs:
+ * <ul>
+ * <li>bench.permissions, bench.methodsPerPermission: size of the PScout
+ * mapping</li>
+ * <li>bench.lookups: number of methods looked up per operation</li>
+ * <li>bench.bodies, bench.bodySize: number and size of the method bodies</li>
+ * <li>bench.depth, bench.width, bench.fanIn, bench.trapRatio: shape of the
+ * callgraph</li>
+ * <li>bench.threads: number of threads of the parallel benchmarks</li>
+ * </ul>
+ */
+public class Benchmarks {
+	private static final long SEED = 42;
+
+	private Benchmarks() {
+
+	}
+
+	public static List<Benchmark> create() {
+		final int permissions = Integer.getInteger("bench.permissions", 300);
+		final int methodsPerPermission = Integer.getInteger(
+				"bench.methodsPerPermission", 100);
+		final int lookups = Integer.getInteger("bench.lookups", 10000);
+		final int bodies = Integer.getInteger("bench.bodies", 50);
+		final int bodySize = Integer.getInteger("bench.bodySize", 500);
+		final int depth = Integer.getInteger("bench.depth", 8);
+		final int width = Integer.getInteger("bench.width", 100);
+		final int fanIn = Integer.getInteger("bench.fanIn", 3);
+		final double trapRatio = Double.parseDouble(System.getProperty(
+				"bench.trapRatio", "0.2"));
+		final int threads = Integer.getInteger("bench.threads", 4);
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		// Compiles the binary store from the text mapping
+		benchmarks.add(new PScoutBenchmark("pscout.compile", permissions,
+				methodsPerPermission) {
+			@Override
+			public Object run() throws Exception {
+				this.storeFile.delete();
+				return PScoutParser.fromFile(this.mappingFile.getPath())
+						.getStore().getMethodCount();
+			}
+		});
+
+		// Loads the methods of the requested permissions from the store
+		benchmarks.add(new PScoutBenchmark("pscout.load", permissions,
+				methodsPerPermission) {
+			@Override
+			public Object run() throws Exception {
+				PScoutStore store = PScoutStore.openIfUpToDate(this.storeFile,
+						this.mappingFile);
+				return store.getMethods(this.requested).size();
+			}
+		});
+
+		// The equality-driven list search the analysis used to do
+		benchmarks.add(new LookupBenchmark("lookup.linear", permissions,
+				methodsPerPermission, lookups) {
+			@Override
+			public Object run() {
+				int found = 0;
+				for (SootMethod sm : this.queries)
+					if (this.methodsConcerned.indexOf(new AndroidMethod(sm)) >= 0)
+						found++;
+				return found;
+			}
+		});
+
+		benchmarks.add(new LookupBenchmark("lookup.index", permissions,
+				methodsPerPermission, lookups) {
+			@Override
+			public Object run() {
+				SensitiveMethodIndex index = new SensitiveMethodIndex(
+						this.methodsConcerned);
+				int found = 0;
+				for (SootMethod sm : this.queries)
+					if (index.lookup(sm) != null)
+						found++;
+				return found;
+			}
+		});
+
+		// Cloning is part of every dead code operation, measure it on its own
+		benchmarks.add(new BodyBenchmark("deadcode.clone", bodies, bodySize) {
+			@Override
+			public Object run() {
+				int units = 0;
+				for (Body body : this.bodies)
+					units += ((Body) body.clone()).getUnits().size();
+				return units;
+			}
+		});
+
+		benchmarks.add(new BodyBenchmark("deadcode.reference", bodies,
+				bodySize) {
+			@Override
+			public Object run() {
+				int units = 0;
+				for (Body body : this.bodies) {
+					Body copy = (Body) body.clone();
+					RevDroidDeadAssignmentEliminator.v().transform(copy);
+					units += copy.getUnits().size();
+				}
+				return units;
+			}
+		});
+
+		benchmarks.add(new BodyBenchmark("deadcode.compact", bodies, bodySize) {
+			@Override
+			public Object run() {
+				int units = 0;
+				for (Body body : this.bodies) {
+					Body copy = (Body) body.clone();
+					CompactDeadAssignmentEliminator.v().transform(copy);
+					units += copy.getUnits().size();
+				}
+				return units;
+			}
+		});
+
+		benchmarks.add(new BodyBenchmark("proactive", bodies, bodySize) {
+			@Override
+			public Object run() {
+				ProactiveCheckIndex index = new ProactiveCheckIndex();
+				int dominated = 0;
+				List<Stmt> sites = this.program.getSensitiveSites();
+				List<SootMethod> methods = this.program
+						.getSensitiveSiteMethods();
+				for (int i = 0; i < sites.size(); i++)
+					if (index.isDominatedByCheck(sites.get(i), methods.get(i)
+							.getActiveBody()))
+						dominated++;
+				return dominated;
+			}
+		});
+
+		benchmarks.add(new CallgraphBenchmark("callerIndex", depth, width,
+				fanIn, trapRatio) {
+			@Override
+			public Object run() {
+				return new CallerIndex().size();
+			}
+		});
+
+		benchmarks.add(new CallgraphBenchmark("guard", depth, width, fanIn,
+				trapRatio) {
+			private CallerIndex callerIndex;
+
+			@Override
+			public void setUp() throws Exception {
+				super.setUp();
+				this.callerIndex = new CallerIndex();
+			}
+
+			@Override
+			public Object run() {
+				GuardAnalysis guardAnalysis = new GuardAnalysis(
+						this.callerIndex);
+				int guarded = 0;
+				List<Stmt> sites = this.program.getSensitiveSites();
+				List<SootMethod> methods = this.program
+						.getSensitiveSiteMethods();
+				for (int i = 0; i < sites.size(); i++)
+					if (guardAnalysis.isGuarded(sites.get(i), methods.get(i)))
+						guarded++;
+				return guarded;
+			}
+		});
+
+		// The same checks split across threads, as with misusageThreads;
+		// compare with guard for the speedup
+		benchmarks.add(new CallgraphBenchmark("guard.parallel", depth, width,
+				fanIn, trapRatio) {
+			private CallerIndex callerIndex;
+			private ExecutorService executor;
+
+			@Override
+			public void setUp() throws Exception {
+				super.setUp();
+				this.callerIndex = new CallerIndex();
+				Scene.v().getOrMakeFastHierarchy();
+				Scene.v().getDefaultThrowAnalysis();
+				this.executor = Executors.newFixedThreadPool(threads);
+			}
+
+			@Override
+			public Object run() throws Exception {
+				final GuardAnalysis guardAnalysis = new GuardAnalysis(
+						this.callerIndex);
+				final List<Stmt> sites = this.program.getSensitiveSites();
+				final List<SootMethod> methods = this.program
+						.getSensitiveSiteMethods();
+
+				List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+				for (int t = 0; t < threads; t++) {
+					final int first = t;
+					results.add(this.executor.submit(new Callable<Integer>() {
+						@Override
+						public Integer call() {
+							int guarded = 0;
+							for (int i = first; i < sites.size(); i += threads)
+								if (guardAnalysis.isGuarded(sites.get(i),
+										methods.get(i)))
+									guarded++;
+							return guarded;
+						}
+					}));
+				}
+
+				int guarded = 0;
+				for (Future<Integer> result : results)
+					guarded += result.get();
+				return guarded;
+			}
+
+			@Override
+			public void tearDown() {
+				this.executor.shutdown();
+			}
+		});
+
+		return benchmarks;
+	}
+
+	private static abstract class PScoutBenchmark extends Benchmark {
+		protected final SyntheticPScout pscout;
+		protected File mappingFile;
+		protected File storeFile;
+		protected Set<String> requested;
+
+		PScoutBenchmark(String name, int permissions, int methodsPerPermission) {
+			super(name);
+			this.pscout = new SyntheticPScout(permissions,
+					methodsPerPermission, 0.3);
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			this.mappingFile = File.createTempFile("pscout", ".txt");
+			this.storeFile = new File(this.mappingFile.getPath()
+					+ PScoutParser.STORE_SUFFIX);
+			this.pscout.write(this.mappingFile);
+			// A typical app requests a handful of permissions
+			this.requested = this.pscout.getPermissions(10);
+			PScoutParser.fromFile(this.mappingFile.getPath()).getStore();
+		}
+
+		@Override
+		public void tearDown() {
+			this.storeFile.delete();
+			this.mappingFile.delete();
+		}
+	}
+
+	private static abstract class LookupBenchmark extends PScoutBenchmark {
+		private final int lookups;
+		protected List<AndroidMethod> methodsConcerned;
+		protected List<SootMethod> queries;
+
+		LookupBenchmark(String name, int permissions,
+				int methodsPerPermission, int lookups) {
+			super(name, permissions, methodsPerPermission);
+			this.lookups = lookups;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			super.setUp();
+			this.methodsConcerned = PScoutParser.fromFile(
+					this.mappingFile.getPath()).parse(this.requested);
+
+			SyntheticProgram program = new SyntheticProgram(SEED);
+			program.initScene();
+			List<SootMethod> sensitive = program
+					.createLibraryMethods(this.pscout.getSignatures());
+			List<SootMethod> others = new ArrayList<SootMethod>();
+			for (int i = 0; i < 100; i++)
+				others.add(program.createMixedMethod(0));
+
+			// Most calls of an app do not go to sensitive methods
+			Random random = new Random(SEED);
+			this.queries = new ArrayList<SootMethod>(this.lookups);
+			for (int i = 0; i < this.lookups; i++) {
+				if (random.nextInt(10) == 0)
+					this.queries.add(sensitive.get(random.nextInt(sensitive
+							.size())));
+				else
+					this.queries.add(others.get(random.nextInt(others.size())));
+			}
+		}
+	}
+
+	private static abstract class BodyBenchmark extends Benchmark {
+		private final int bodyCount;
+		private final int bodySize;
+		protected SyntheticProgram program;
+		protected List<Body> bodies;
+
+		BodyBenchmark(String name, int bodyCount, int bodySize) {
+			super(name);
+			this.bodyCount = bodyCount;
+			this.bodySize = bodySize;
+		}
+
+		@Override
+		public void setUp() {
+			this.program = new SyntheticProgram(SEED);
+			this.program.initScene();
+			this.bodies = new ArrayList<Body>(this.bodyCount);
+			for (int i = 0; i < this.bodyCount; i++)
+				this.bodies.add(this.program.createMixedMethod(this.bodySize)
+						.getActiveBody());
+			Scene.v().getActiveHierarchy();
+		}
+	}
+
+	private static abstract class CallgraphBenchmark extends Benchmark {
+		private final int depth;
+		private final int width;
+		private final int fanIn;
+		private final double trapRatio;
+		protected SyntheticProgram program;
+
+		CallgraphBenchmark(String name, int depth, int width, int fanIn,
+				double trapRatio) {
+			super(name);
+			this.depth = depth;
+			this.width = width;
+			this.fanIn = fanIn;
+			this.trapRatio = trapRatio;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			this.program = new SyntheticProgram(SEED);
+			this.program.initScene();
+			this.program.createLayeredProgram(this.depth, this.width,
+					this.fanIn, this.trapRatio);
+			Scene.v().getActiveHierarchy();
+		}
+	}
+}
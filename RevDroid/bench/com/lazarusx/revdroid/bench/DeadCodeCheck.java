@@ -0,0 +1,99 @@
+package com.lazarusx.revdroid.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import soot.Body;
+import soot.SootMethod;
+import soot.Unit;
+
+import com.lazarusx.revdroid.analyzer.CompactDeadAssignmentEliminator;
+import com.lazarusx.revdroid.analyzer.RevDroidDeadAssignmentEliminator;
+
+/**
+ * Differential check of {@link CompactDeadAssignmentEliminator} against
+ * {@link RevDroidDeadAssignmentEliminator}. Both transform copies of the
+ * same synthetic bodies, which must come out statement for statement
+ * identical. Besides the random bodies, a fixed body checks that a
+ * definition reaching a handler only through the exceptional edge of a
+ * redefinition is kept. Exits with status 1 on the first difference.
+ */
+public class DeadCodeCheck {
+	public static void main(String[] args) {
+		int seeds = Integer.getInteger("bench.seeds", 20);
+		int bodies = Integer.getInteger("bench.bodies", 50);
+		int maxBodySize = Integer.getInteger("bench.bodySize", 500);
+
+		SyntheticProgram fixed = new SyntheticProgram(0);
+		fixed.initScene();
+		SootMethod redefinition = fixed.createRedefinitionMethod();
+		String definition = redefinition.getActiveBody().getUnits()
+				.getFirst().toString();
+		if (!toStrings(check(redefinition, 0)).contains(definition)) {
+			System.err.println("Definition " + definition + " removed from "
+					+ redefinition.getSignature());
+			System.err.println(redefinition.getActiveBody());
+			System.exit(1);
+		}
+
+		int checked = 1;
+		for (long seed = 0; seed < seeds; seed++) {
+			SyntheticProgram program = new SyntheticProgram(seed);
+			program.initScene();
+
+			for (int i = 0; i < bodies; i++) {
+				// Vary the size from a few statements to the maximum
+				int size = 1 + (int) ((long) maxBodySize * i / bodies);
+				SootMethod sm = program.createMixedMethod(size);
+				if (i % 2 == 1)
+					program.addHandler(sm);
+
+				check(sm, seed);
+				checked++;
+			}
+		}
+		System.out.println("Checked " + checked + " bodies, no differences");
+	}
+
+	/**
+	 * Runs both eliminators on copies of the body of a method and exits if
+	 * they differ
+	 *
+	 * @return The body transformed by the compact eliminator
+	 */
+	private static Body check(SootMethod sm, long seed) {
+		Body reference = (Body) sm.getActiveBody().clone();
+		Body compact = (Body) sm.getActiveBody().clone();
+		RevDroidDeadAssignmentEliminator.v().transform(reference);
+		CompactDeadAssignmentEliminator.v().transform(compact);
+
+		String difference = compare(reference, compact);
+		if (difference != null) {
+			System.err.println("Difference in " + sm.getSignature()
+					+ " (seed " + seed + "): " + difference);
+			System.err.println(sm.getActiveBody());
+			System.exit(1);
+		}
+		return compact;
+	}
+
+	private static String compare(Body reference, Body compact) {
+		List<String> expected = toStrings(reference);
+		List<String> actual = toStrings(compact);
+		for (int i = 0; i < Math.min(expected.size(), actual.size()); i++)
+			if (!expected.get(i).equals(actual.get(i)))
+				return "statement " + i + " is " + actual.get(i)
+						+ " instead of " + expected.get(i);
+		if (expected.size() != actual.size())
+			return actual.size() + " statements instead of "
+					+ expected.size();
+		return null;
+	}
+
+	private static List<String> toStrings(Body body) {
+		List<String> strings = new ArrayList<String>();
+		for (Unit u : body.getUnits())
+			strings.add(u.toString());
+		return strings;
+	}
+}
@@ -0,0 +1,84 @@
+package com.lazarusx.revdroid.bench;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import soot.G;
+
+import com.lazarusx.revdroid.analyzer.Analyzer;
+import com.lazarusx.revdroid.analyzer.Application;
+import com.lazarusx.revdroid.analyzer.Configuration;
+import com.lazarusx.revdroid.analyzer.Misusage;
+
+/**
+ * Differential check of an analysis mode against the default analysis.
+ * Every APK is analyzed once with the mode off and once with it on, and
+ * both runs must report the same misusages. Exits with status 1 on the
+ * first difference.
+ *
+ * <pre>
+ * ModeCheck (shared | demand) app.apk...
+ * </pre>
+ *
+ * The platforms and the PScout result are taken from the system properties
+ * revdroid.platforms and revdroid.pscout.
+ */
+public class ModeCheck {
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: ModeCheck (shared | demand) <apk>...");
+			System.exit(2);
+		}
+		String platforms = System.getProperty("revdroid.platforms");
+		String pscout = System.getProperty("revdroid.pscout");
+
+		String mode = args[0];
+		int checked = 0;
+		for (int i = 1; i < args.length; i++) {
+			String apkPath = args[i];
+			Set<String> expected = analyze(platforms, apkPath, pscout,
+					createConfiguration(mode, false));
+			Set<String> actual = analyze(platforms, apkPath, pscout,
+					createConfiguration(mode, true));
+			if (!expected.equals(actual)) {
+				Set<String> missing = new TreeSet<String>(expected);
+				missing.removeAll(actual);
+				Set<String> additional = new TreeSet<String>(actual);
+				additional.removeAll(expected);
+				System.err.println("Difference in " + apkPath + " with "
+						+ mode + ": missing " + missing + ", additional "
+						+ additional);
+				System.exit(1);
+			}
+			checked++;
+		}
+		System.out.println("Checked " + checked + " APKs with " + mode
+				+ ", no differences");
+	}
+
+	private static Configuration createConfiguration(String mode,
+			boolean enabled) {
+		Configuration config = new Configuration();
+		if (mode.equals("shared"))
+			config.setSharedScene(enabled);
+		else if (mode.equals("demand"))
+			config.setDemandDriven(enabled);
+		else
+			throw new IllegalArgumentException("Unknown mode " + mode);
+		return config;
+	}
+
+	private static Set<String> analyze(String platforms, String apkPath,
+			String pscout, Configuration config) throws Exception {
+		G.reset();
+		Application app = new Application(platforms, apkPath, pscout, config);
+		Analyzer analyzer = new Analyzer(app);
+		analyzer.analyze();
+
+		Set<String> misusages = new TreeSet<String>();
+		for (Misusage misusage : analyzer.getMisusages())
+			misusages.add(misusage.getEnclosingMethod() + " "
+					+ misusage.getStatement());
+		return misusages;
+	}
+}
@@ -0,0 +1,103 @@
+package com.lazarusx.revdroid.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates PScout mappings in the format of the allmappings file
+ */
+public class SyntheticPScout {
+	private static final String[] TYPES = { "int", "long", "boolean",
+			"java.lang.String", "android.content.Intent", "android.os.Bundle" };
+
+	private final int permissionCount;
+	private final int methodsPerPermission;
+	private final double sharedRatio;
+	private final List<String> signatures = new ArrayList<String>();
+
+	/**
+	 * @param permissionCount
+	 *            The number of permissions in the mapping
+	 * @param methodsPerPermission
+	 *            The number of methods listed for every permission
+	 * @param sharedRatio
+	 *            The share of methods listed for more than one permission
+	 */
+	public SyntheticPScout(int permissionCount, int methodsPerPermission,
+			double sharedRatio) {
+		this.permissionCount = permissionCount;
+		this.methodsPerPermission = methodsPerPermission;
+		this.sharedRatio = sharedRatio;
+	}
+
+	public static String getPermission(int i) {
+		return "android.permission.SYNTHETIC_" + i;
+	}
+
+	public Set<String> getPermissions(int count) {
+		Set<String> permissions = new LinkedHashSet<String>();
+		for (int i = 0; i < count && i < this.permissionCount; i++)
+			permissions.add(getPermission(i));
+		return permissions;
+	}
+
+	/**
+	 * Gets the signatures of all methods of the last generated mapping
+	 */
+	public List<String> getSignatures() {
+		return this.signatures;
+	}
+
+	public void write(File file) throws IOException {
+		Random random = new Random(42);
+		this.signatures.clear();
+
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			for (int p = 0; p < this.permissionCount; p++) {
+				writer.write("Permission:" + getPermission(p));
+				writer.newLine();
+				writer.write(this.methodsPerPermission + " Callers:");
+				writer.newLine();
+
+				for (int m = 0; m < this.methodsPerPermission; m++) {
+					String signature;
+					if (!this.signatures.isEmpty()
+							&& random.nextDouble() < this.sharedRatio) {
+						signature = this.signatures.get(random
+								.nextInt(this.signatures.size()));
+					} else {
+						signature = newSignature(random, this.signatures.size());
+						this.signatures.add(signature);
+					}
+					writer.write(signature + " (" + random.nextInt(20) + ")");
+					writer.newLine();
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static String newSignature(Random random, int id) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<android.synthetic.Service").append(id % 500)
+				.append(": ").append(TYPES[random.nextInt(TYPES.length)])
+				.append(" method").append(id).append('(');
+		int parameters = random.nextInt(4);
+		for (int i = 0; i < parameters; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(TYPES[random.nextInt(TYPES.length)]);
+		}
+		sb.append(")>");
+		return sb.toString();
+	}
+}
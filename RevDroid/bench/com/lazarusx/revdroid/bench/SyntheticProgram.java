@@ -0,0 +1,406 @@
+package com.lazarusx.revdroid.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import soot.Body;
+import soot.BooleanType;
+import soot.G;
+import soot.IntType;
+import soot.Local;
+import soot.LongType;
+import soot.Modifier;
+import soot.RefType;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Type;
+import soot.Unit;
+import soot.VoidType;
+import soot.jimple.IntConstant;
+import soot.jimple.Jimple;
+import soot.jimple.JimpleBody;
+import soot.jimple.NopStmt;
+import soot.jimple.Stmt;
+import soot.jimple.StringConstant;
+import soot.jimple.infoflow.data.SootMethodAndClass;
+import soot.jimple.infoflow.util.SootMethodRepresentationParser;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+import soot.options.Options;
+
+/**
+ * Builds synthetic programs directly in Jimple, so that the analysis phases
+ * can be measured without an APK, an SDK or a device
+ */
+public class SyntheticProgram {
+	private final Random random;
+	private SootClass securityException;
+	private SootClass appClass;
+	private SootMethod permissionCheck;
+	private SootMethod sensitiveApi;
+	private SootMethod entryPoint;
+	private final List<Stmt> sensitiveSites = new ArrayList<Stmt>();
+	private final List<SootMethod> sensitiveSiteMethods = new ArrayList<SootMethod>();
+	private int methodCount = 0;
+
+	public SyntheticProgram(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Resets Soot and creates the few library classes the synthetic programs
+	 * refer to
+	 */
+	public void initScene() {
+		G.reset();
+		Options.v().set_allow_phantom_refs(true);
+		Options.v().set_whole_program(true);
+		Options.v().set_output_format(Options.output_format_none);
+
+		SootClass object = newClass("java.lang.Object", null, false);
+		SootClass throwable = newClass("java.lang.Throwable", object, false);
+		SootClass exception = newClass("java.lang.Exception", throwable, false);
+		SootClass runtimeException = newClass("java.lang.RuntimeException",
+				exception, false);
+		this.securityException = newClass("java.lang.SecurityException",
+				runtimeException, false);
+
+		SootClass context = newClass("android.content.Context", object, false);
+		this.permissionCheck = newStub(context, "checkPermission",
+				Collections.<Type> singletonList(RefType.v("java.lang.String")),
+				IntType.v());
+		this.sensitiveApi = newStub(context, "getDeviceId",
+				Collections.<Type> emptyList(), RefType.v("java.lang.String"));
+
+		this.appClass = newClass("com.example.Synthetic", object, true);
+	}
+
+	public SootMethod getEntryPoint() {
+		return this.entryPoint;
+	}
+
+	public List<Stmt> getSensitiveSites() {
+		return this.sensitiveSites;
+	}
+
+	public List<SootMethod> getSensitiveSiteMethods() {
+		return this.sensitiveSiteMethods;
+	}
+
+	/**
+	 * Creates Soot methods for the given PScout signatures in library
+	 * classes
+	 *
+	 * @param signatures
+	 *            Method signatures in Soot format
+	 * @return The methods in the order of the signatures
+	 */
+	public List<SootMethod> createLibraryMethods(List<String> signatures) {
+		List<SootMethod> methods = new ArrayList<SootMethod>(signatures.size());
+		for (String signature : signatures) {
+			SootMethodAndClass smac = SootMethodRepresentationParser.v()
+					.parseSootMethodString(signature);
+			SootClass sc;
+			if (Scene.v().containsClass(smac.getClassName()))
+				sc = Scene.v().getSootClass(smac.getClassName());
+			else
+				sc = newClass(smac.getClassName(),
+						Scene.v().getSootClass("java.lang.Object"), false);
+
+			List<Type> parameterTypes = new ArrayList<Type>();
+			for (String parameter : smac.getParameters())
+				parameterTypes.add(toType(parameter));
+			methods.add(newStub(sc, smac.getMethodName(), parameterTypes,
+					toType(smac.getReturnType())));
+		}
+		return methods;
+	}
+
+	/**
+	 * Creates a static method whose body mixes constant computations, dead
+	 * temporaries, divisions, branches, permission checks and sensitive calls
+	 *
+	 * @param size
+	 *            The approximate number of statements
+	 * @return The new method with its body set
+	 */
+	public SootMethod createMixedMethod(int size) {
+		SootMethod sm = newMethod();
+		JimpleBody body = (JimpleBody) sm.getActiveBody();
+		Jimple j = Jimple.v();
+
+		List<Local> temporaries = new ArrayList<Local>();
+		temporaries.add(newLocal(body, "$i", IntType.v()));
+		body.getUnits().add(j.newAssignStmt(temporaries.get(0),
+				IntConstant.v(1)));
+
+		List<NopStmt> pendingTargets = new ArrayList<NopStmt>();
+		for (int i = 0; i < size; i++) {
+			Local a = temporaries.get(this.random.nextInt(temporaries.size()));
+			Local b = temporaries.get(this.random.nextInt(temporaries.size()));
+
+			switch (this.random.nextInt(8)) {
+			case 0:
+				Local c = newLocal(body, "$i", IntType.v());
+				temporaries.add(c);
+				body.getUnits().add(j.newAssignStmt(c,
+						IntConstant.v(this.random.nextInt(100))));
+				break;
+			case 1:
+			case 2:
+				Local sum = newLocal(body, "$i", IntType.v());
+				temporaries.add(sum);
+				body.getUnits().add(j.newAssignStmt(sum, j.newAddExpr(a, b)));
+				break;
+			case 3:
+				// Named locals are always kept
+				body.getUnits().add(j.newAssignStmt(
+						newLocal(body, "v", IntType.v()), a));
+				break;
+			case 4:
+				Local quotient = newLocal(body, "$i", IntType.v());
+				temporaries.add(quotient);
+				body.getUnits().add(j.newAssignStmt(quotient,
+						j.newDivExpr(a, b)));
+				break;
+			case 5:
+				NopStmt target = j.newNopStmt();
+				pendingTargets.add(target);
+				body.getUnits().add(j.newIfStmt(j.newEqExpr(a,
+						IntConstant.v(0)), target));
+				break;
+			case 6:
+				body.getUnits().add(j.newInvokeStmt(j.newStaticInvokeExpr(
+						this.permissionCheck.makeRef(),
+						StringConstant.v("android.permission.READ_PHONE_STATE"))));
+				break;
+			default:
+				Stmt site = j.newInvokeStmt(j.newStaticInvokeExpr(
+						this.sensitiveApi.makeRef()));
+				body.getUnits().add(site);
+				this.sensitiveSites.add(site);
+				this.sensitiveSiteMethods.add(sm);
+			}
+
+			// Close some of the open branches
+			if (!pendingTargets.isEmpty() && this.random.nextInt(3) == 0)
+				body.getUnits().add(pendingTargets.remove(0));
+		}
+		body.getUnits().addAll(pendingTargets);
+		body.getUnits().add(j.newReturnVoidStmt());
+		return sm;
+	}
+
+	/**
+	 * Wraps a random range of a method created by
+	 * {@link #createMixedMethod(int)} in a trap for SecurityException. The
+	 * handler reads a random temporary, so that definitions reach it only
+	 * through exceptional edges.
+	 *
+	 * @param sm
+	 *            The method to change
+	 */
+	public void addHandler(SootMethod sm) {
+		Body body = sm.getActiveBody();
+		Jimple j = Jimple.v();
+
+		List<Unit> units = new ArrayList<Unit>(body.getUnits());
+		List<Local> temporaries = new ArrayList<Local>();
+		for (Local local : body.getLocals())
+			if (local.getName().startsWith("$i"))
+				temporaries.add(local);
+
+		// The last unit is the return statement
+		int begin = this.random.nextInt(units.size() - 1);
+		int end = begin + 1 + this.random.nextInt(units.size() - 1 - begin);
+
+		Local exception = newLocal(body, "$r",
+				RefType.v(this.securityException));
+		Unit handler = j.newIdentityStmt(exception, j.newCaughtExceptionRef());
+		body.getUnits().add(handler);
+		body.getUnits().add(j.newAssignStmt(newLocal(body, "v", IntType.v()),
+				temporaries.get(this.random.nextInt(temporaries.size()))));
+		body.getUnits().add(j.newReturnVoidStmt());
+		body.getTraps().add(j.newTrap(this.securityException,
+				units.get(begin), units.get(end), handler));
+	}
+
+	/**
+	 * Creates a method whose handler reads a temporary that two calls inside
+	 * the trap redefine. The definition before the trap reaches the handler
+	 * only because a call throwing to the handler passes on the definitions
+	 * before it, not the one it makes.
+	 *
+	 * @return The new method with its body set. The definition before the
+	 *         trap is its first unit.
+	 */
+	public SootMethod createRedefinitionMethod() {
+		SootMethod sm = newMethod();
+		Body body = sm.getActiveBody();
+		Jimple j = Jimple.v();
+
+		Local temporary = newLocal(body, "$i", IntType.v());
+		body.getUnits().add(j.newAssignStmt(temporary, IntConstant.v(1)));
+		Unit begin = null;
+		for (int i = 0; i < 2; i++) {
+			Unit call = j.newAssignStmt(temporary, j.newStaticInvokeExpr(
+					this.permissionCheck.makeRef(),
+					StringConstant.v("android.permission.READ_PHONE_STATE")));
+			body.getUnits().add(call);
+			if (begin == null)
+				begin = call;
+		}
+		Unit end = j.newAssignStmt(newLocal(body, "v", IntType.v()),
+				temporary);
+		body.getUnits().add(end);
+		body.getUnits().add(j.newReturnVoidStmt());
+
+		Local exception = newLocal(body, "$r",
+				RefType.v(this.securityException));
+		Unit handler = j.newIdentityStmt(exception, j.newCaughtExceptionRef());
+		body.getUnits().add(handler);
+		body.getUnits().add(j.newAssignStmt(newLocal(body, "v", IntType.v()),
+				temporary));
+		body.getUnits().add(j.newReturnVoidStmt());
+		body.getTraps().add(j.newTrap(this.securityException, begin, end,
+				handler));
+		return sm;
+	}
+
+	/**
+	 * Creates a layered call graph. The entry point calls every method of
+	 * the first layer, every method of a layer is called by fanIn methods of
+	 * the layer above, and every method of the last layer calls the
+	 * sensitive API. Some call sites are wrapped in a trap for
+	 * SecurityException, and the program becomes the current scene's
+	 * callgraph.
+	 *
+	 * @param depth
+	 *            The number of layers
+	 * @param width
+	 *            The number of methods per layer
+	 * @param fanIn
+	 *            The number of callers of every method below the first layer
+	 * @param trapRatio
+	 *            The share of call sites wrapped in a trap
+	 */
+	public void createLayeredProgram(int depth, int width, int fanIn,
+			double trapRatio) {
+		CallGraph cg = new CallGraph();
+		this.entryPoint = newMethod();
+
+		List<SootMethod> previous = Collections.singletonList(this.entryPoint);
+		for (int level = 0; level < depth; level++) {
+			List<SootMethod> current = new ArrayList<SootMethod>(width);
+			for (int i = 0; i < width; i++) {
+				SootMethod callee = newMethod();
+				current.add(callee);
+
+				int callers = level == 0 ? 1 : Math.min(fanIn, previous.size());
+				for (int k = 0; k < callers; k++) {
+					SootMethod caller = previous.get(level == 0 ? 0
+							: (i + k) % previous.size());
+					Stmt call = addCall(caller, callee, trapRatio);
+					cg.addEdge(new Edge(caller, call, callee));
+				}
+			}
+			previous = current;
+		}
+
+		for (SootMethod sm : previous) {
+			Stmt site = addCall(sm, this.sensitiveApi, trapRatio);
+			this.sensitiveSites.add(site);
+			this.sensitiveSiteMethods.add(sm);
+		}
+
+		for (SootClass sc : Scene.v().getApplicationClasses())
+			for (SootMethod sm : sc.getMethods())
+				if (sm.hasActiveBody())
+					sm.getActiveBody().getUnits()
+							.add(Jimple.v().newReturnVoidStmt());
+
+		Scene.v().setCallGraph(cg);
+		Scene.v().setEntryPoints(
+				Collections.singletonList(this.entryPoint));
+	}
+
+	private Stmt addCall(SootMethod caller, SootMethod callee, double trapRatio) {
+		Body body = caller.getActiveBody();
+		Stmt call = Jimple.v().newInvokeStmt(
+				Jimple.v().newStaticInvokeExpr(callee.makeRef()));
+		body.getUnits().add(call);
+
+		if (this.random.nextDouble() < trapRatio) {
+			// The handler is placed behind the call and skipped normally
+			Unit end = Jimple.v().newNopStmt();
+			Unit afterHandler = Jimple.v().newNopStmt();
+			Local exception = newLocal(body, "$r",
+					RefType.v(this.securityException));
+			Unit handler = Jimple.v().newIdentityStmt(exception,
+					Jimple.v().newCaughtExceptionRef());
+			body.getUnits().add(end);
+			body.getUnits().add(Jimple.v().newGotoStmt(afterHandler));
+			body.getUnits().add(handler);
+			body.getUnits().add(afterHandler);
+			body.getTraps().add(Jimple.v().newTrap(this.securityException,
+					call, end, handler));
+		}
+		return call;
+	}
+
+	private SootMethod newMethod() {
+		SootMethod sm = new SootMethod("m" + this.methodCount++,
+				Collections.<Type> emptyList(), VoidType.v(), Modifier.PUBLIC
+						| Modifier.STATIC);
+		this.appClass.addMethod(sm);
+		JimpleBody body = Jimple.v().newBody(sm);
+		sm.setActiveBody(body);
+		return sm;
+	}
+
+	private static SootMethod newStub(SootClass sc, String name,
+			List<Type> parameterTypes, Type returnType) {
+		SootMethod sm = sc.getMethodUnsafe(name, parameterTypes, returnType);
+		if (sm == null) {
+			sm = new SootMethod(name, parameterTypes, returnType,
+					Modifier.PUBLIC | Modifier.STATIC | Modifier.NATIVE);
+			sc.addMethod(sm);
+		}
+		return sm;
+	}
+
+	private static SootClass newClass(String name, SootClass superclass,
+			boolean application) {
+		SootClass sc = new SootClass(name, Modifier.PUBLIC);
+		if (superclass != null)
+			sc.setSuperclass(superclass);
+		Scene.v().addClass(sc);
+		if (application)
+			sc.setApplicationClass();
+		else
+			sc.setLibraryClass();
+		sc.setResolvingLevel(SootClass.BODIES);
+		return sc;
+	}
+
+	private static Local newLocal(Body body, String prefix, Type type) {
+		Local local = Jimple.v().newLocal(prefix + body.getLocalCount(), type);
+		body.getLocals().add(local);
+		return local;
+	}
+
+	private static Type toType(String name) {
+		if (name.equals("int"))
+			return IntType.v();
+		if (name.equals("long"))
+			return LongType.v();
+		if (name.equals("boolean"))
+			return BooleanType.v();
+		if (name.equals("void"))
+			return VoidType.v();
+		return RefType.v(name);
+	}
+}
@@ -1,19 +1,23 @@
 package com.lazarusx.revdroid.analyzer;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-import soot.Body;
-import soot.G;
 import soot.MethodOrMethodContext;
 import soot.PackManager;
 import soot.Scene;
+import soot.SootClass;
 import soot.SootMethod;
-import soot.TrapManager;
 import soot.Unit;
 import soot.jimple.InvokeExpr;
 import soot.jimple.Stmt;
@@ -21,76 +25,134 @@ import soot.jimple.infoflow.cfg.LibraryClassPatcher;
 import soot.jimple.infoflow.solver.cfg.InfoflowCFG;
 import soot.jimple.infoflow.util.InterproceduralConstantValuePropagator;
 import soot.jimple.infoflow.util.SystemClassHandler;
-import soot.jimple.toolkits.ide.icfg.JimpleBasedInterproceduralCFG;
 import soot.jimple.toolkits.scalar.ConditionalBranchFolder;
 import soot.jimple.toolkits.scalar.ConstantPropagatorAndFolder;
 import soot.jimple.toolkits.scalar.UnreachableCodeEliminator;
 import soot.options.Options;
-import soot.toolkits.graph.ExceptionalGraph;
-import soot.toolkits.graph.ExceptionalUnitGraph;
-import soot.toolkits.graph.SimpleDominatorsFinder;
+import soot.tagkit.BytecodeOffsetTag;
 import soot.util.queue.QueueReader;
 
 public class Analyzer {
 	private Application app;
-	private HashSet<Misusage> misusages = new HashSet<Misusage>();
+	private Set<Misusage> misusages = new LinkedHashSet<Misusage>();
+	private GuardAnalysis guardAnalysis;
+	private int sensitiveCallSites = 0;
+	// Only set in demand-driven mode
+	private Set<SootMethod> sensitiveCallers = null;
+	private MisusageWriter misusageWriter = null;
+	// Only set in incremental mode
+	private List<SootMethod> reachableMethods = null;
+	private Map<String, String> fingerprints = null;
+	private String stateContext = null;
+	private IncrementalState previousState = null;
 
 	public Analyzer(Application app) {
 		this.app = app;
 	}
 
-	public HashSet<Misusage> getMisusages() {
+	/**
+	 * Sets a writer which receives every misusage as soon as it is found
+	 * 
+	 * @param misusageWriter
+	 *            The writer, or null to only collect the misusages
+	 */
+	public void setMisusageWriter(MisusageWriter misusageWriter) {
+		this.misusageWriter = misusageWriter;
+	}
+
+	public Set<Misusage> getMisusages() {
 		return this.misusages;
 	}
 
 	public void analyze() {
-		initSoot();
-
-		// We explicitly select the packs we want to run for performance reasons
-		PackManager.v().getPack("wjpp").apply();
-		PackManager.v().getPack("cg").apply();
-
+		Metrics metrics = app.getMetrics();
+		if (app.isPrefiltered()) {
+			return;
+		}
+		
+		// When the scene is shared, all classes, the dummy main method and
+		// the callgraph have already been built by the callback calculation
+		metrics.start("scene");
+		if (!app.isSceneShared()) {
+			initSoot();
+		}
+		metrics.stop("scene");
+		
+		if (app.getConfiguration().isDemandDriven()) {
+			metrics.start("prescan");
+			this.sensitiveCallers = findSensitiveCallers();
+			metrics.stop("prescan");
+			metrics.setCount("sensitive_callers", this.sensitiveCallers.size());
+			
+			// Without a single sensitive call in the application's code,
+			// there is nothing to misuse, reachable or not
+			if (this.sensitiveCallers.isEmpty()) {
+				Helper.printDebugMessage("No sensitive calls found, skipping the analysis");
+				return;
+			}
+		}
+		
+		metrics.start("callgraph");
+		if (!app.isSceneShared()) {
+			// We explicitly select the packs we want to run for performance reasons
+			PackManager.v().getPack("wjpp").apply();
+			this.app.buildCallgraph();
+		}
+		metrics.stop("callgraph");
+		metrics.setCount("application_classes", Scene.v()
+				.getApplicationClasses().size());
+		metrics.setCount("reachable_methods", Scene.v().getReachableMethods()
+				.size());
+		metrics.setCount("callgraph_edges", Scene.v().getCallGraph().size());
+		
+		metrics.start("deadcode");
 		eliminateDeadCode();
+		metrics.stop("deadcode");
+		metrics.setCount("callgraph_edges_after_deadcode", Scene.v()
+				.getCallGraph().size());
 		
+		metrics.start("patch");
 		patchLibraries();
+		metrics.stop("patch");
+		
+		if (app.getConfiguration().getIncrementalDirectory() != null) {
+			metrics.start("fingerprints");
+			loadIncrementalState();
+			metrics.stop("fingerprints");
+		}
 		 
+		metrics.start("misusages");
 		findMisusages();
+		metrics.stop("misusages");
+		metrics.setCount("sensitive_call_sites", this.sensitiveCallSites);
+		metrics.setCount("guard_verdicts", this.guardAnalysis.getVerdictCount());
+		metrics.setCount("misusages", this.misusages.size());
 	}
 
-	private void initSoot() {
-		G.reset();
-		
-		Helper.setOutput();
-		
-//		Options.v().set_no_bodies_for_excluded(true);
-		Options.v().set_allow_phantom_refs(true);
-		Options.v().set_output_format(Options.output_format_none);
-		Options.v().set_whole_program(true);
-		Options.v().set_process_dir(Collections.singletonList(this.app.getApkPath()));
-//		Options.v().set_soot_classpath(
-//				appendClasspath(this.app.getApkPath(),
-//						"/usr/lib/jvm/java-7-oracle/jre/lib/rt.jar"));
-		Options.v().set_soot_classpath(this.app.getAndroidJarPath());
-		Options.v().set_android_jars(this.app.getAndroidPlatformPath());
-		Options.v().set_src_prec(Options.src_prec_apk);
-		soot.Main.v().autoSetOptions();
+	/**
+	 * Decides before the inter-procedural constant propagation starts
+	 * whether it fits the budget, since it cannot be interrupted. It does
+	 * not if the callgraph has more edges than the configuration allows,
+	 * took longer than its own budget, or if too little heap is left.
+	 * 
+	 * @return True if the constant propagation may run
+	 */
+	private boolean isConstantPropagationAffordable() {
+		Configuration config = this.app.getConfiguration();
+		int limit = config.getConstantPropagationEdgeLimit();
+		return !this.app.isCallgraphOverBudget()
+				&& (limit <= 0 || Scene.v().getCallGraph().size() <= limit)
+				&& config.createPhaseBudget().hasHeapHeadroom();
+	}
 
-		Options.v().setPhaseOption("cg.spark", "on");
-//		Options.v().setPhaseOption("cg.spark", "string-constants:true");
-//		Options.v().setPhaseOption("cg", "trim-clinit:false");
-//		Options.v().setPhaseOption("jb.ulp", "off");
-		
-//		Collection<String> classes = this.app.getEntryPointCreator()
-//				.getRequiredClasses();
-//		for (String className : classes) {
-//			Scene.v().addBasicClass(className, SootClass.BODIES);
-//		}
-		Scene.v().loadNecessaryClasses();
+	private void initSoot() {
+		// The options are the same as for a shared scene, so the result does
+		// not depend on whether the scene is shared
+		this.app.initSoot(true);
 		
 		SootMethod dummyMainMethod = this.app.getEntryPointCreator().createDummyMain();
 		Options.v().set_main_class(dummyMainMethod.getSignature());
 		Scene.v().setEntryPoints(Collections.singletonList(dummyMainMethod));
-		Scene.v().addBasicClass("java.lang.SecurityException");
 //		if (Scene.v().containsClass(this.app.getDummyMainMethod().getDeclaringClass().getName()))
 //			Scene.v().removeClass(this.app.getDummyMainMethod().getDeclaringClass());
 //		Scene.v().addClass(this.app.getDummyMainMethod().getDeclaringClass());
@@ -138,6 +200,7 @@ public class Analyzer {
 	private void eliminateDeadCode() {
 		// Perform an intra-procedural constant propagation to prepare for the
 		// inter-procedural one
+		boolean compact = this.app.getConfiguration().isCompactDeadCode();
 		for (QueueReader<MethodOrMethodContext> rdr =
 				Scene.v().getReachableMethods().listener(); rdr.hasNext(); ) {
 			MethodOrMethodContext sm = rdr.next();
@@ -151,7 +214,10 @@ public class Analyzer {
 			List<Unit> callSites = getCallsInMethod(sm.method());
 			
 			ConstantPropagatorAndFolder.v().transform(sm.method().getActiveBody());
-			RevDroidDeadAssignmentEliminator.v().transform(sm.method().getActiveBody());
+			if (compact)
+				CompactDeadAssignmentEliminator.v().transform(sm.method().getActiveBody());
+			else
+				RevDroidDeadAssignmentEliminator.v().transform(sm.method().getActiveBody());
 			
 			// Remove the dead callgraph edges
 			List<Unit> newCallSites = getCallsInMethod(sm.method());
@@ -163,14 +229,22 @@ public class Analyzer {
 		
 		// Perform an inter-procedural constant propagation and code cleanup
 		// TODO: problematic here
-		InterproceduralConstantValuePropagator ipcvp =
-				new InterproceduralConstantValuePropagator(
-						new InfoflowCFG(),
-						Scene.v().getEntryPoints(),
-						null,
-						null);
-		ipcvp.setRemoveSideEffectFreeMethods(true);
-		ipcvp.transform();
+		boolean constantPropagation = this.app.getConfiguration()
+				.isConstantPropagation();
+		if (constantPropagation && !isConstantPropagationAffordable()) {
+			this.app.addDegradation("ipcvp:skipped");
+			constantPropagation = false;
+		}
+		if (constantPropagation) {
+			InterproceduralConstantValuePropagator ipcvp =
+					new InterproceduralConstantValuePropagator(
+							new InfoflowCFG(),
+							Scene.v().getEntryPoints(),
+							null,
+							null);
+			ipcvp.setRemoveSideEffectFreeMethods(true);
+			ipcvp.transform();
+		}
 		
 		// Get rid of all dead code
 		for (QueueReader<MethodOrMethodContext> rdr =
@@ -197,13 +271,44 @@ public class Analyzer {
 		}
 	}
 	
+	/**
+	 * Scans the bodies of all methods of the application classes for calls
+	 * of the methods concerned. This needs no callgraph, and since dead code
+	 * elimination only removes calls, the reachable callers are among the
+	 * methods found.
+	 * 
+	 * @return The methods containing such calls
+	 */
+	private Set<SootMethod> findSensitiveCallers() {
+		SensitiveMethodIndex index = this.app.getSensitiveMethodIndex();
+		Set<SootMethod> callers = new HashSet<SootMethod>();
+		for (SootClass sc : new ArrayList<SootClass>(Scene.v()
+				.getApplicationClasses())) {
+			if (SystemClassHandler.isClassInSystemPackage(sc.getName()))
+				continue;
+			for (SootMethod sm : new ArrayList<SootMethod>(sc.getMethods())) {
+				if (!sm.isConcrete())
+					continue;
+				for (Unit u : sm.retrieveActiveBody().getUnits()) {
+					Stmt stmt = (Stmt) u;
+					if (stmt.containsInvokeExpr()
+							&& index.lookup(stmt.getInvokeExpr().getMethod()) != null) {
+						callers.add(sm);
+						break;
+					}
+				}
+			}
+		}
+		return callers;
+	}
+	
 	/**
 	 * Gets a list of all units that invoke other methods in the given method
 	 * @param method The method from which to get all invocations
 	 * @return The list of units calling other methods in the given method if
 	 * there is at least one such unit. Otherwise null.
 	 */
-	private List<Unit> getCallsInMethod(SootMethod method) {
+	private static List<Unit> getCallsInMethod(SootMethod method) {
 		List<Unit> callSites = null;
 		for (Unit u : method.getActiveBody().getUnits())
 			if (((Stmt) u).containsInvokeExpr()) {
@@ -219,10 +324,75 @@ public class Analyzer {
 		patcher.patchLibraries();
 	}
 	
+	/**
+	 * Fingerprints the classes of this version of the app and loads the
+	 * state the analysis of its previous version left behind
+	 */
+	private void loadIncrementalState() {
+		this.reachableMethods = new ArrayList<SootMethod>();
+		for (QueueReader<MethodOrMethodContext> rdr =
+				Scene.v().getReachableMethods().listener(); rdr.hasNext(); )
+			this.reachableMethods.add(rdr.next().method());
+		this.fingerprints = IncrementalState
+				.computeFingerprints(this.reachableMethods);
+		
+		try {
+			this.stateContext = IncrementalState.computeContext(this.app);
+			this.previousState = IncrementalState.load(getStateFile(),
+					this.stateContext);
+		} catch (IOException e) {
+			System.err.println("Could not load the incremental state of "
+					+ this.app.getPackageName() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Stores the fingerprints and verdicts of this version of the app for
+	 * the analysis of its next version
+	 */
+	private void saveIncrementalState(CallerIndex callerIndex) {
+		// Partial results would make the next version reuse degraded verdicts
+		if (this.stateContext == null || this.app.isPartial())
+			return;
+		try {
+			IncrementalState.capture(this.stateContext, this.fingerprints,
+					this.reachableMethods, this.guardAnalysis, callerIndex)
+					.save(getStateFile());
+		} catch (IOException e) {
+			System.err.println("Could not store the incremental state of "
+					+ this.app.getPackageName() + ": " + e.getMessage());
+		}
+	}
+	
+	private File getStateFile() {
+		return IncrementalState.getStateFile(this.app.getConfiguration()
+				.getIncrementalDirectory(), this.app);
+	}
+	
 	private void findMisusages() {
+		// The callgraph does not change anymore, so all checks share one
+		// interprocedural CFG and reverse callgraph index
+		CallerIndex callerIndex = new CallerIndex();
+		this.guardAnalysis = new GuardAnalysis(callerIndex);
+		if (this.previousState != null) {
+			int reused = this.previousState.seed(this.guardAnalysis,
+					this.fingerprints, this.reachableMethods, callerIndex);
+			this.app.getMetrics().setCount("reused_verdicts", reused);
+		}
+		
+		SensitiveMethodIndex index = app.getSensitiveMethodIndex();
+		index.resetCounters();
+		
+		// Collect the sensitive call sites in a fixed order. Bodies may
+		// still be loaded here, so this is done on the analyzing thread.
+		List<SensitiveCall> candidates = new ArrayList<SensitiveCall>();
 		Iterator<MethodOrMethodContext> iterator = Scene.v().getReachableMethods().listener();
 		while (iterator.hasNext()) {
 			SootMethod sm = iterator.next().method();
+			if (this.sensitiveCallers != null
+					&& sm.getDeclaringClass().isApplicationClass()
+					&& !this.sensitiveCallers.contains(sm))
+				continue;
 			if (sm.isConcrete()
 					&& !SystemClassHandler.isClassInSystemPackage(sm.method().getDeclaringClass().getName())) {
 				for (Unit u : sm.retrieveActiveBody().getUnits()) {
@@ -230,110 +400,132 @@ public class Analyzer {
 						Stmt stmt = (Stmt) u;
 						if (stmt.containsInvokeExpr()) {
 							InvokeExpr inv = stmt.getInvokeExpr();
-							AndroidMethod method = new AndroidMethod(inv.getMethod());
-							int index;
-							if ((index = app.getMethodsConcerned().indexOf(method)) != -1) {
-								Helper.printDebugMessage("Occurrence found " + method.getSignature() + " " + sm.getSignature());
-																
-								HashSet<Stmt> history = new HashSet<Stmt>();
-								if (checkStatement(stmt, sm, history)) {
-									Helper.printDebugMessage("Found traps containing the method");
-								} else {
-									AndroidMethod methodConcerned = app.getMethodsConcerned().get(index);
-									this.misusages.add(new Misusage(stmt, methodConcerned));
-									Helper.printDebugMessage("Not found traps containing the method");
-								}
+							AndroidMethod methodConcerned = index.lookup(inv.getMethod());
+							if (methodConcerned != null) {
+								Helper.printDebugMessage("Occurrence found " + methodConcerned.getSignature() + " " + sm.getSignature());
+								candidates.add(new SensitiveCall(stmt, sm, methodConcerned));
 							}
 						}
 					}
 				}
 			}
 		}
+		this.sensitiveCallSites = candidates.size();
+		
+		int threads = this.app.getConfiguration().getMisusageThreads();
+		if (threads > 1 && candidates.size() > 1) {
+			boolean[] guarded = new boolean[candidates.size()];
+			
+			// Create the lazily built parts of the scene the checks read
+			// before they are shared
+			Scene.v().getActiveHierarchy();
+			Scene.v().getOrMakeFastHierarchy();
+			Scene.v().getDefaultThrowAnalysis();
+			
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				pool.invoke(new GuardTask(this.guardAnalysis, candidates,
+						guarded, 0, candidates.size()));
+			} finally {
+				pool.shutdown();
+			}
+			
+			// Misusages are reported in the order of their call sites no
+			// matter how many threads checked them
+			for (int i = 0; i < candidates.size(); i++)
+				report(candidates.get(i), guarded[i]);
+		} else {
+			for (SensitiveCall call : candidates)
+				report(call, this.guardAnalysis.isGuarded(call.stmt, call.method));
+		}
+		
+		Helper.printDebugMessage("Sensitive method index: " + index.getHits()
+				+ " hits, " + index.getMisses() + " misses");
+		Helper.printDebugMessage("Guard verdicts computed: "
+				+ this.guardAnalysis.getVerdictCount());
+		
+		if (this.reachableMethods != null)
+			saveIncrementalState(callerIndex);
 	}
 	
-	/*
-	 * Check whether a Stmt which belongs to a SootMethod handles permission check correctly.
-	 * When requirement is not met and recursion is found, this method returns false.
-	 * @param	stmt	the Stmt which might lead to SecurityException
-	 * @param	sm		the SootMethod which stmt belongs to
-	 * @param	history	a collection of Stmt's which have been checked before
+	/**
+	 * Records a checked call site as a misusage if it is not guarded, and
+	 * passes the misusage on to the writer right away
 	 */
-	private boolean checkStatement(Stmt stmt, SootMethod sm, HashSet<Stmt> history) {
-		if (history.contains(stmt)) {
-			Helper.printDebugMessage("Recursion found. Not found trap in caller");
-			return false;
-		} else {
-			history.add(stmt);
+	private void report(SensitiveCall call, boolean guarded) {
+		if (guarded) {
+			Helper.printDebugMessage("Found traps containing the method");
+			return;
 		}
+		Helper.printDebugMessage("Not found traps containing the method");
 		
-		// Super classes of `SecurityException` are included into analysis by Soot.
-		// See the source code of `TrapManager.isExceptionCaughtAt()`.
-		if (TrapManager.isExceptionCaughtAt(Scene.v().getSootClass("java.lang.SecurityException"), stmt, sm.getActiveBody())) {
-			return true;
-		} else if (findProactivePermissionCheck(stmt, sm.getActiveBody())) {
-			return true;
-		} else {
-			JimpleBasedInterproceduralCFG cfg = new JimpleBasedInterproceduralCFG();
-			Collection<Unit> callers = cfg.getCallersOf(sm);
-			
-			if (callers.isEmpty()) {
-				return false;
-			} else {
-				for (Unit u : callers) {
-					if (u instanceof Stmt) {
-						Stmt callerStmt = (Stmt) u;
-						if (callerStmt.containsInvokeExpr()) {
-							SootMethod callerMethod = cfg.getMethodOf(u);
-							if (!checkStatement(callerStmt, callerMethod, history)) {
-								Helper.printDebugMessage("Not found trap in caller");
-								return false;
-							}
-						} else {
-							Helper.printDebugMessage("Caller statement does not contain invoke expressions");
-							return false;
-						}
-					} else  {
-						Helper.printDebugMessage("Caller unit is not an instance of Stmt");
-						return false;
-					}
-				}
-				
-				Helper.printDebugMessage("Found trap in caller");
-				return true;
-			}
+		// Only strings are kept, so the misusages outlive the scene
+		BytecodeOffsetTag offset = (BytecodeOffsetTag) call.stmt
+				.getTag("BytecodeOffsetTag");
+		Misusage misusage = new Misusage(call.method.getSignature(),
+				call.stmt.toString(), call.stmt.getJavaSourceStartLineNumber(),
+				offset == null ? -1 : offset.getBytecodeOffset(),
+				call.methodConcerned,
+				this.guardAnalysis.getUnguardedCallerChain(call.method));
+		this.misusages.add(misusage);
+		if (this.misusageWriter != null)
+			this.misusageWriter.write(misusage);
+	}
+	
+	/**
+	 * A call of a method concerned, which is a misusage unless it is guarded
+	 */
+	private static class SensitiveCall {
+		final Stmt stmt;
+		final SootMethod method;
+		final AndroidMethod methodConcerned;
+		
+		SensitiveCall(Stmt stmt, SootMethod method,
+				AndroidMethod methodConcerned) {
+			this.stmt = stmt;
+			this.method = method;
+			this.methodConcerned = methodConcerned;
 		}
 	}
 	
-	/*
-	 * Find whether a Stmt which belongs to a Body is wrapper by a proactive permission check
-	 * @param	stmt	the Stmt which might lead to SecurityException
-	 * @param	sm		the body which Stmt belongs to		
+	/**
+	 * Checks a range of sensitive call sites, splitting the range until it
+	 * is small enough to be worth a task of its own
 	 */
-	private boolean findProactivePermissionCheck(Stmt stmt, Body body) {
-		// Match method name String instead of the entire AndroidMethod because 
-		// subclasses of Context also have the following methods
-		// TODO: do it more precisely 
-		HashSet<String> permissionCheckers = new HashSet<String>();
-		permissionCheckers.add("checkPermission");
-		permissionCheckers.add("checkCallingPermission");
-		permissionCheckers.add("checkCallingOrSelfPermission");
-		permissionCheckers.add("checkUidPermission");
+	private static class GuardTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int SITES_PER_TASK = 8;
 		
-		ExceptionalGraph<Unit> graph = new ExceptionalUnitGraph(body);
-		SimpleDominatorsFinder<Unit> dominatorFinder = new SimpleDominatorsFinder<Unit>(graph);
-		List<Unit> dominators = dominatorFinder.getDominators(stmt);
-		for (Unit unit : dominators) {
-			if (unit instanceof Stmt) {
-				Stmt dominatorStmt = (Stmt) unit;
-				if (dominatorStmt.containsInvokeExpr()) {
-					if (permissionCheckers.contains(dominatorStmt.getInvokeExpr().getMethod().getName())) {
-						Helper.printDebugMessage("Proactive permission check found: " + dominatorStmt.getInvokeExpr().getMethod().getSignature());
-						return true;
-					}
-				}
-			}
+		private final GuardAnalysis guardAnalysis;
+		private final List<SensitiveCall> candidates;
+		private final boolean[] guarded;
+		private final int from;
+		private final int to;
+		
+		GuardTask(GuardAnalysis guardAnalysis, List<SensitiveCall> candidates,
+				boolean[] guarded, int from, int to) {
+			this.guardAnalysis = guardAnalysis;
+			this.candidates = candidates;
+			this.guarded = guarded;
+			this.from = from;
+			this.to = to;
 		}
 		
-		return false;
+		@Override
+		protected void compute() {
+			if (this.to - this.from <= SITES_PER_TASK) {
+				for (int i = this.from; i < this.to; i++)
+					this.guarded[i] = this.guardAnalysis.isGuarded(
+							this.candidates.get(i).stmt,
+							this.candidates.get(i).method);
+				return;
+			}
+			
+			int middle = (this.from + this.to) >>> 1;
+			invokeAll(new GuardTask(this.guardAnalysis, this.candidates,
+					this.guarded, this.from, middle), new GuardTask(
+					this.guardAnalysis, this.candidates, this.guarded, middle,
+					this.to));
+		}
 	}
 }
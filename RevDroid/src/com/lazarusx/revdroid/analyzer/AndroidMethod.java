@@ -77,6 +77,16 @@ public class AndroidMethod extends SootMethodAndClass {
 		return false;
 	}
 
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = getClassName().hashCode();
+		result = prime * result + getMethodName().hashCode();
+		result = prime * result + getReturnType().hashCode();
+		result = prime * result + getParameters().hashCode();
+		return result;
+	}
+
 	public String getSignatureAndPermissions() {
 		String s = getSignature();
 		for (String perm : permissions)
@@ -0,0 +1,365 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An APK opened through a memory-mapped file. The central directory is
+ * read once, and the entries are handed out as buffers: stored entries are
+ * views of the mapping, deflated entries are inflated every time they are
+ * asked for and not kept, so a caller going through the dex files of a
+ * multidex APK holds one of them at a time.
+ *
+ * Entries may be read from several threads.
+ */
+public class ApkFile implements Closeable {
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int END_SIZE = 22;
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+	private static final int MAX_COMMENT_SIZE = 0xffff;
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+
+	public static class Entry {
+		private final String name;
+		private final int method;
+		private final long compressedSize;
+		private final long size;
+		private final long localHeaderOffset;
+
+		Entry(String name, int method, long compressedSize, long size,
+				long localHeaderOffset) {
+			this.name = name;
+			this.method = method;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The uncompressed size of the entry in bytes
+		 */
+		public long getSize() {
+			return size;
+		}
+	}
+
+	private final String path;
+	private final ByteBuffer buffer;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	/**
+	 * Opens an APK and reads its central directory
+	 *
+	 * @param path
+	 *            The APK
+	 * @throws IOException
+	 *             Thrown if the APK cannot be read or is not a zip file
+	 */
+	public ApkFile(String path) throws IOException {
+		this.path = path;
+
+		RandomAccessFile raf = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(path + " is too large to be mapped");
+			// The mapping stays valid after the channel has been closed
+			this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			raf.close();
+		}
+
+		try {
+			readCentralDirectory();
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException("Malformed zip file " + path, e);
+		}
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public Collection<Entry> getEntries() {
+		return Collections.unmodifiableCollection(this.entries.values());
+	}
+
+	/**
+	 * @param name
+	 *            The name of the entry, e.g., AndroidManifest.xml
+	 * @return The entry, or null if the APK does not contain it
+	 */
+	public Entry getEntry(String name) {
+		return this.entries.get(name);
+	}
+
+	/**
+	 * Gets the content of an entry. Every call returns a buffer of its own,
+	 * whose position, limit and byte order can be changed freely. A deflated
+	 * entry is inflated again on every call and lives as long as the buffer.
+	 *
+	 * @param entry
+	 *            The entry
+	 * @return A read-only buffer of the uncompressed content
+	 * @throws IOException
+	 *             Thrown if the entry cannot be read
+	 */
+	public ByteBuffer getBuffer(Entry entry) throws IOException {
+		ByteBuffer content;
+		try {
+			if (entry.method == STORED) {
+				content = slice(getDataOffset(entry), entry.size);
+			} else if (entry.method == DEFLATED) {
+				content = inflate(entry).asReadOnlyBuffer();
+			} else {
+				throw new IOException("Unsupported compression method "
+						+ entry.method + " of " + entry.name);
+			}
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException("Malformed entry " + entry.name + " in "
+					+ this.path, e);
+		}
+		return content;
+	}
+
+	/**
+	 * Gets the content of an entry as a stream, for parsers which do not
+	 * take buffers
+	 */
+	public InputStream getInputStream(Entry entry) throws IOException {
+		return new BufferInputStream(getBuffer(entry));
+	}
+
+	/**
+	 * Nothing is held besides the mapping, which is released once no buffer
+	 * handed out refers to it anymore
+	 */
+	@Override
+	public void close() {
+	}
+
+	private void readCentralDirectory() throws IOException {
+		int end = findEnd();
+		long count = this.buffer.getShort(end + 10) & 0xffff;
+		long offset = this.buffer.getInt(end + 16) & 0xffffffffL;
+
+		if (count == 0xffff || offset == 0xffffffffL) {
+			int locator = end - ZIP64_LOCATOR_SIZE;
+			if (locator >= 0
+					&& this.buffer.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+				int zip64End = toPosition(this.buffer.getLong(locator + 8));
+				if (this.buffer.getInt(zip64End) != ZIP64_END_SIGNATURE)
+					throw new IOException("Malformed zip64 end record in "
+							+ this.path);
+				count = this.buffer.getLong(zip64End + 32);
+				offset = this.buffer.getLong(zip64End + 48);
+			}
+		}
+
+		int position = toPosition(offset);
+		for (long i = 0; i < count; i++) {
+			if (this.buffer.getInt(position) != CENTRAL_HEADER_SIGNATURE)
+				throw new IOException("Malformed central directory in "
+						+ this.path);
+
+			int method = this.buffer.getShort(position + 10) & 0xffff;
+			long compressedSize = this.buffer.getInt(position + 20) & 0xffffffffL;
+			long size = this.buffer.getInt(position + 24) & 0xffffffffL;
+			int nameLength = this.buffer.getShort(position + 28) & 0xffff;
+			int extraLength = this.buffer.getShort(position + 30) & 0xffff;
+			int commentLength = this.buffer.getShort(position + 32) & 0xffff;
+			long localHeaderOffset = this.buffer.getInt(position + 42) & 0xffffffffL;
+			String name = readString(position + 46, nameLength);
+
+			// Values which do not fit are stored in the zip64 extra field,
+			// in this order
+			int extra = position + 46 + nameLength;
+			int extraEnd = extra + extraLength;
+			while (extra + 4 <= extraEnd) {
+				int id = this.buffer.getShort(extra) & 0xffff;
+				int length = this.buffer.getShort(extra + 2) & 0xffff;
+				if (id == ZIP64_EXTRA_ID) {
+					int field = extra + 4;
+					if (size == 0xffffffffL) {
+						size = this.buffer.getLong(field);
+						field += 8;
+					}
+					if (compressedSize == 0xffffffffL) {
+						compressedSize = this.buffer.getLong(field);
+						field += 8;
+					}
+					if (localHeaderOffset == 0xffffffffL)
+						localHeaderOffset = this.buffer.getLong(field);
+					break;
+				}
+				extra += 4 + length;
+			}
+
+			// Only the first of several entries of the same name is kept
+			if (!this.entries.containsKey(name))
+				this.entries.put(name, new Entry(name, method, compressedSize,
+						size, localHeaderOffset));
+			position += 46 + nameLength + extraLength + commentLength;
+		}
+	}
+
+	/**
+	 * Finds the end of central directory record, which is followed by a
+	 * comment of unknown length
+	 */
+	private int findEnd() throws IOException {
+		int last = this.buffer.limit() - END_SIZE;
+		int first = Math.max(0, last - MAX_COMMENT_SIZE);
+		for (int position = last; position >= first; position--)
+			if (this.buffer.getInt(position) == END_SIGNATURE)
+				return position;
+		throw new IOException(this.path + " is not a zip file");
+	}
+
+	private int getDataOffset(Entry entry) throws IOException {
+		int header = toPosition(entry.localHeaderOffset);
+		if (this.buffer.getInt(header) != LOCAL_HEADER_SIGNATURE)
+			throw new IOException("Malformed local header of " + entry.name
+					+ " in " + this.path);
+		// The extra field of the local header may differ from the one in the
+		// central directory
+		int nameLength = this.buffer.getShort(header + 26) & 0xffff;
+		int extraLength = this.buffer.getShort(header + 28) & 0xffff;
+		return header + 30 + nameLength + extraLength;
+	}
+
+	private ByteBuffer inflate(Entry entry) throws IOException {
+		if (entry.size > Integer.MAX_VALUE)
+			throw new IOException(entry.name + " is too large to be inflated");
+
+		ByteBuffer compressed = slice(getDataOffset(entry),
+				entry.compressedSize);
+		byte[] content = new byte[(int) entry.size];
+		byte[] input = new byte[64 * 1024];
+		Inflater inflater = new Inflater(true);
+		try {
+			int inflatedBytes = 0;
+			boolean padded = false;
+			while (inflatedBytes < content.length && !inflater.finished()) {
+				if (inflater.needsDictionary())
+					throw new IOException("Unsupported entry " + entry.name
+							+ " in " + this.path);
+				if (inflater.needsInput()) {
+					if (!compressed.hasRemaining()) {
+						// Without the zlib wrapper, the inflater may need a
+						// dummy byte past the end of the data
+						if (padded)
+							break;
+						inflater.setInput(new byte[1]);
+						padded = true;
+					} else {
+						int length = Math.min(input.length,
+								compressed.remaining());
+						compressed.get(input, 0, length);
+						inflater.setInput(input, 0, length);
+					}
+				}
+				inflatedBytes += inflater.inflate(content, inflatedBytes,
+						content.length - inflatedBytes);
+			}
+			if (inflatedBytes != content.length)
+				throw new IOException("Truncated entry " + entry.name + " in "
+						+ this.path);
+		} catch (DataFormatException e) {
+			throw new IOException("Malformed entry " + entry.name + " in "
+					+ this.path, e);
+		} finally {
+			inflater.end();
+		}
+		return ByteBuffer.wrap(content);
+	}
+
+	private ByteBuffer slice(int offset, long length) throws IOException {
+		if (offset + length > this.buffer.limit())
+			throw new IOException("Truncated zip file " + this.path);
+		ByteBuffer view = this.buffer.duplicate();
+		view.position(offset);
+		view.limit(offset + (int) length);
+		return view.slice();
+	}
+
+	private int toPosition(long offset) throws IOException {
+		if (offset < 0 || offset >= this.buffer.limit())
+			throw new IOException("Malformed zip file " + this.path);
+		return (int) offset;
+	}
+
+	private String readString(int offset, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer view = this.buffer.duplicate();
+		view.position(offset);
+		view.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads a buffer from its position to its limit
+	 */
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			if (!this.buffer.hasRemaining())
+				return -1;
+			return this.buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!this.buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, this.buffer.remaining());
+			this.buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n,
+					this.buffer.remaining()));
+			this.buffer.position(this.buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return this.buffer.remaining();
+		}
+	}
+}
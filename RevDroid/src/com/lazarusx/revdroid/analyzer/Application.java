@@ -1,6 +1,7 @@
 package com.lazarusx.revdroid.analyzer;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -9,6 +10,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -17,7 +23,6 @@ import soot.PackManager;
 import soot.Scene;
 import soot.SootClass;
 import soot.SootMethod;
-import soot.jimple.infoflow.IInfoflow.CallgraphAlgorithm;
 import soot.jimple.infoflow.android.AnalyzeJimpleClass;
 import soot.jimple.infoflow.android.manifest.ProcessManifest;
 import soot.jimple.infoflow.android.resources.ARSCFileParser;
@@ -31,8 +36,12 @@ import soot.jimple.infoflow.entryPointCreators.AndroidEntryPointCreator;
 import soot.options.Options;
 
 public class Application {
+	// The platform jar, the resource table and the PScout store are loaded
+	// next to the manifest
+	private static final int FRONT_END_THREADS = 3;
+
 	private String apkPath;
-	private String pscoutResultPath;
+	private PScoutParser pscoutParser;
 	private String androidPlatformPath;
 	private String androidJarPath;
 	private String packageName;
@@ -41,36 +50,135 @@ public class Application {
 	private Set<String> entryPoints;
 	private SootMethod dummyMainMethod;
 	private ArrayList<AndroidMethod> methodsConcerned;
+	private SensitiveMethodIndex sensitiveMethodIndex;
 	private List<ResPackage> resourcePackages;
 	private Map<String, Set<SootMethodAndClass>> callbackMethods;
 	private AndroidEntryPointCreator entryPointCreator;
-	private CallgraphAlgorithm callgraphAlgorithm = CallgraphAlgorithm.AutomaticSelection;
+	private Configuration config;
+	private CallgraphAlgorithm callgraphAlgorithm;
+	private Metrics metrics = new Metrics();
+	private int callbackIterations = 0;
+	private boolean sceneShared = false;
+	private boolean prefiltered = false;
+	private List<String> degradations = new ArrayList<String>();
+	private int callbackCountAtFixpoint = 0;
+	private boolean callgraphOverBudget = false;
 
 	public Application(String androidPlatformPath, String apkPath,
 			String pscoutResultPath) throws IOException, XmlPullParserException {
+		this(androidPlatformPath, apkPath, pscoutResultPath, new Configuration());
+	}
+
+	public Application(String androidPlatformPath, String apkPath,
+			String pscoutResultPath, Configuration config)
+			throws IOException, XmlPullParserException {
+		this(androidPlatformPath, apkPath, PScoutParser
+				.fromFile(pscoutResultPath), config);
+	}
+
+	/**
+	 * Creates an application sharing an already opened PScout result with
+	 * other applications
+	 */
+	public Application(String androidPlatformPath, String apkPath,
+			PScoutParser pscoutParser, Configuration config)
+			throws IOException, XmlPullParserException {
 		this.androidPlatformPath = androidPlatformPath;
 		this.apkPath = apkPath;
-		this.pscoutResultPath = pscoutResultPath;
+		this.pscoutParser = pscoutParser;
+		this.config = config;
+		this.callgraphAlgorithm = config.getCallgraphAlgorithm();
 		this.callbackMethods = new HashMap<String, Set<SootMethodAndClass>>();
 		
-		// Get metadata including:
-		// - package name
-		// - app name
-		// - permissions
-		// - entry points, i.e., activity classes, service classes, etc.
-		calculateMetadata();
-		
-		// Get a list of methods which we are concerned
-		// according to the permissions which the application
-		// requests and PScout result
-		calculateMethodsConcernedFromPScoutResult();
+		// The front-end stages read the APK through one mapping, and those
+		// which do not depend on each other run concurrently
+		ARSCFileParser resParser;
+		final ApkFile apk = new ApkFile(this.apkPath);
+		ExecutorService executor = Executors.newFixedThreadPool(FRONT_END_THREADS);
+		try {
+			this.metrics.start("frontend");
+			Future<String> androidJarPath = executor.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return Scene.v().getAndroidJarPath(
+							Application.this.androidPlatformPath,
+							Application.this.apkPath);
+				}
+			});
+			Future<ARSCFileParser> resources = executor.submit(new Callable<ARSCFileParser>() {
+				@Override
+				public ARSCFileParser call() throws IOException {
+					return parseResources(apk);
+				}
+			});
+			Future<PScoutStore> store = executor.submit(new Callable<PScoutStore>() {
+				@Override
+				public PScoutStore call() throws IOException {
+					return Application.this.pscoutParser.getStore();
+				}
+			});
+			
+			// Get metadata including:
+			// - package name
+			// - app name
+			// - permissions
+			// - entry points, i.e., activity classes, service classes, etc.
+			this.metrics.start("metadata");
+			calculateMetadata(apk);
+			this.metrics.stop("metadata");
+			
+			// Get a list of methods which we are concerned
+			// according to the permissions which the application
+			// requests and PScout result
+			this.metrics.start("pscout");
+			await(store);
+			calculateMethodsConcernedFromPScoutResult();
+			this.metrics.stop("pscout");
+			this.metrics.setCount("methods_concerned", this.methodsConcerned.size());
+			
+			this.androidJarPath = await(androidJarPath);
+			
+			// Most APKs never call a method concerned. These are recognized
+			// from their dex files before Soot is even started.
+			if (this.config.isPrefilter()) {
+				this.metrics.start("prefilter");
+				try {
+					this.prefiltered = !new DexPrefilter(this.methodsConcerned)
+							.mayCallMethodsConcerned(apk);
+				} catch (IOException e) {
+					// Leave it to Soot to deal with the APK
+					System.err.println("Could not prefilter " + this.apkPath
+							+ ": " + e.getMessage());
+				}
+				this.metrics.stop("prefilter");
+				if (this.prefiltered) {
+					Helper.printDebugMessage("No calls of methods concerned in "
+							+ this.apkPath);
+					resources.cancel(true);
+					this.metrics.stop("frontend");
+					return;
+				}
+			}
+			
+			resParser = await(resources);
+			this.metrics.stop("frontend");
+		} finally {
+			executor.shutdownNow();
+			apk.close();
+		}
 		
 		// Calculate resource packages, callback methods
 		// and dummy main method
-		calculateResourcePackagesAndCallbackMethods();
+		this.metrics.start("callbacks");
+		calculateResourcePackagesAndCallbackMethods(resParser);
+		this.metrics.stop("callbacks");
+		this.metrics.setCount("callback_iterations", this.callbackIterations);
+		this.metrics.setCount("callback_methods", countCallbackMethods());
 		
 		// Calculate the entry point creator and dummy main method 
+		this.metrics.start("entrypoints");
 		calculateEntryPointCreator();
+		this.metrics.stop("entrypoints");
 	}
 	
 	public String getApkPath() {
@@ -85,6 +193,10 @@ public class Application {
 		return androidJarPath;
 	}
 
+	public PScoutParser getPScoutParser() {
+		return pscoutParser;
+	}
+
 	public String getPackageName() {
 		return packageName;
 	}
@@ -109,10 +221,27 @@ public class Application {
 		return callbackMethods;
 	}
 
+	/**
+	 * Gets the algorithm the callgraph is built with. This is the configured
+	 * one unless the application was found too large for it.
+	 * 
+	 * @return The callgraph algorithm
+	 */
 	public CallgraphAlgorithm getCallgraphAlgorithm() {
 		return callgraphAlgorithm;
 	}
 
+	/**
+	 * Gets whether the latest callgraph took longer or more heap than the
+	 * phase budget. The callgraph is kept anyway, but the phases after it
+	 * should not add to the cost.
+	 * 
+	 * @return True if the callgraph exceeded its budget
+	 */
+	public boolean isCallgraphOverBudget() {
+		return callgraphOverBudget;
+	}
+
 	public SootMethod getDummyMainMethod() {
 		return dummyMainMethod;
 	}
@@ -121,12 +250,72 @@ public class Application {
 		return this.methodsConcerned;
 	}
 	
+	public SensitiveMethodIndex getSensitiveMethodIndex() {
+		return this.sensitiveMethodIndex;
+	}
+	
 	public AndroidEntryPointCreator getEntryPointCreator() {
 		return entryPointCreator;
 	}
 
-	public void setCallgraphAlgorithm(CallgraphAlgorithm callgraphAlgorithm) {
-		this.callgraphAlgorithm = callgraphAlgorithm;
+	public Configuration getConfiguration() {
+		return config;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public int getCallbackIterations() {
+		return callbackIterations;
+	}
+
+	/**
+	 * Gets whether the current Soot scene already contains all classes, the
+	 * dummy main method and the callgraph of this application
+	 * 
+	 * @return True if the analyzer can work on the current scene as is
+	 */
+	public boolean isSceneShared() {
+		return sceneShared;
+	}
+
+	/**
+	 * Gets whether the application was found not to call any of the methods
+	 * concerned before Soot was started. The callbacks and entry points of
+	 * such an application are not calculated.
+	 * 
+	 * @return True if the application cannot misuse any permission
+	 */
+	public boolean isPrefiltered() {
+		return prefiltered;
+	}
+
+	/**
+	 * Records that a phase exceeded its budget and was cut short, or that
+	 * a cheaper phase was chosen because it would have
+	 * 
+	 * @param degradation
+	 *            What was done instead, e.g., callgraph:CHA
+	 */
+	public void addDegradation(String degradation) {
+		System.err.println("Budget exceeded for " + this.apkPath + ", "
+				+ degradation);
+		this.degradations.add(degradation);
+	}
+
+	public List<String> getDegradations() {
+		return degradations;
+	}
+
+	/**
+	 * Gets whether any phase exceeded its budget. The misusages found are
+	 * then not necessarily the misusages of the application.
+	 * 
+	 * @return True if the results are partial
+	 */
+	public boolean isPartial() {
+		return !this.degradations.isEmpty();
 	}
 
 	// For debug purpose
@@ -154,26 +343,83 @@ public class Application {
 		}
 	}
 
-	private void calculateMetadata() throws IOException, XmlPullParserException {
-		this.androidJarPath = Scene.v().getAndroidJarPath(this.androidPlatformPath,
-				this.apkPath);
-		ProcessManifest processManifest = new ProcessManifest(this.apkPath);
-		this.packageName = processManifest.getPackageName();
-		this.appName = processManifest.getApplicationName();
-		this.permissions = processManifest.getPermissions();
-		this.entryPoints = processManifest.getEntryPointClasses();
-		processManifest.close();
+	// For debug purpose
+	public void printMetrics() {
+		System.out.println("Metrics:");
+		this.metrics.print(System.out);
+		System.out.println("End of metrics");
+	}
+
+	private void calculateMetadata(ApkFile apk) throws IOException,
+			XmlPullParserException {
+		ApkFile.Entry entry = apk.getEntry("AndroidManifest.xml");
+		if (entry == null)
+			throw new IOException("No AndroidManifest.xml in " + this.apkPath);
+
+		InputStream in = apk.getInputStream(entry);
+		try {
+			ProcessManifest processManifest = new ProcessManifest(in);
+			this.packageName = processManifest.getPackageName();
+			this.appName = processManifest.getApplicationName();
+			this.permissions = processManifest.getPermissions();
+			this.entryPoints = processManifest.getEntryPointClasses();
+			processManifest.close();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Parses the resource table of the APK. Runs concurrently with the
+	 * other front-end stages.
+	 */
+	private static ARSCFileParser parseResources(ApkFile apk)
+			throws IOException {
+		ARSCFileParser resParser = new ARSCFileParser();
+		ApkFile.Entry entry = apk.getEntry("resources.arsc");
+		if (entry != null) {
+			InputStream in = apk.getInputStream(entry);
+			try {
+				resParser.parse(in);
+			} finally {
+				in.close();
+			}
+		}
+		return resParser;
+	}
+
+	/**
+	 * Waits for a front-end stage and passes its failure on
+	 */
+	private static <T> T await(Future<T> stage) throws IOException,
+			XmlPullParserException {
+		try {
+			return stage.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading the APK", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof XmlPullParserException)
+				throw (XmlPullParserException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
 	}
 
 	private void calculateMethodsConcernedFromPScoutResult() throws IOException {
-		PScoutParser parser = PScoutParser.fromFile(this.pscoutResultPath);
-		this.methodsConcerned = parser.parse(this.permissions);
+		this.methodsConcerned = this.pscoutParser.parse(this.permissions);
+		this.sensitiveMethodIndex = new SensitiveMethodIndex(this.methodsConcerned);
 	}
 
 	// Actually I didn't know what the hell is `resource packages'
-	private void calculateResourcePackagesAndCallbackMethods() throws IOException {
-		ARSCFileParser resParser = new ARSCFileParser();
-		resParser.parse(this.apkPath);
+	private void calculateResourcePackagesAndCallbackMethods(
+			ARSCFileParser resParser) throws IOException {
 		this.resourcePackages = resParser.getPackages();
 
 		LayoutFileParser lfp = new LayoutFileParser(this.packageName, resParser);
@@ -181,8 +427,30 @@ public class Application {
 	}
 
 	private void calculateEntryPointCreator() {
-		initSoot();
+		if (!this.config.isSharedScene()) {
+			initSoot(false);
+			this.entryPointCreator = createEntryPointCreator();
+			return;
+		}
+
+		// Reuse the scene of the last callback iteration. Its callgraph is
+		// only outdated if the layout files contributed further callbacks.
+		int callbackCount = countCallbackMethods();
 		this.entryPointCreator = createEntryPointCreator();
+		if (callbackCount != this.callbackCountAtFixpoint) {
+			releaseCallgraph();
+			createMainMethodAndAddToSoot();
+			PackManager.v().getPack("wjpp").apply();
+			buildCallgraph();
+		}
+		this.sceneShared = true;
+	}
+
+	private int countCallbackMethods() {
+		int count = 0;
+		for (Set<SootMethodAndClass> methods : this.callbackMethods.values())
+			count += methods.size();
+		return count;
 	}
 
 	/**
@@ -199,13 +467,31 @@ public class Application {
 	private void calculateCallbackMethods(ARSCFileParser resParser,
 			LayoutFileParser lfp) throws IOException {
 		AnalyzeJimpleClass jimpleClass = null;
+		Budget budget = this.config.createPhaseBudget();
+		long startTime = System.nanoTime();
 
 		boolean hasChanged = true;
 		while (hasChanged) {
+			// Every iteration leaves a usable set of callbacks behind, so
+			// the fixpoint is given up on between iterations
+			if (this.callbackIterations > 0 && budget.isExceeded(startTime)) {
+				addDegradation("callbacks:" + this.callbackIterations
+						+ " iterations");
+				break;
+			}
 			hasChanged = false;
-
-			// Create the new iteration of the main method
-			initSoot();
+			this.callbackIterations++;
+			String phase = "callbacks.iteration" + this.callbackIterations;
+			this.metrics.start(phase);
+
+			// Create the new iteration of the main method. In incremental
+			// mode, the classes loaded in the first iteration are kept and
+			// only the results depending on the old dummy main are dropped.
+			if (this.callbackIterations == 1
+					|| !this.config.isIncrementalCallbacks())
+				initSoot(this.config.isSharedScene());
+			else
+				releaseCallgraph();
 			createMainMethodAndAddToSoot();
 
 			if (jimpleClass == null) {
@@ -222,9 +508,16 @@ public class Application {
 
 			// Run the soot-based operations
 			PackManager.v().getPack("wjpp").apply();
-			PackManager.v().getPack("cg").apply();
+			buildCallgraph();
 			PackManager.v().getPack("wjtp").apply();
 
+			// The layout file parser only needs to run once and the callback
+			// analyzer is registered again in the next iteration
+			if (this.config.isIncrementalCallbacks()) {
+				PackManager.v().getPack("wjtp").remove("wjtp.lfp");
+				PackManager.v().getPack("wjtp").remove("wjtp.ajc");
+			}
+
 			// Collect the results of the soot-based phases
 			for (Entry<String, Set<SootMethodAndClass>> entry : jimpleClass
 					.getCallbackMethods().entrySet()) {
@@ -241,9 +534,17 @@ public class Application {
 
 			if (this.entryPoints.addAll(jimpleClass.getDynamicManifestComponents()))
 				hasChanged = true;
+
+			long duration = this.metrics.stop(phase);
+			Helper.printDebugMessage("Callback iteration "
+					+ this.callbackIterations + " took " + duration + " ms");
 		}
+		this.callbackCountAtFixpoint = countCallbackMethods();
 
-		// Collect the XML-based callback methods
+		// Collect the XML-based callback methods. Views are shared by many
+		// layouts and extend the same framework classes, so what they
+		// override is looked up in one index.
+		FrameworkMethodIndex frameworkMethods = new FrameworkMethodIndex();
 		for (Entry<String, Set<Integer>> lcentry : jimpleClass
 				.getLayoutClasses().entrySet()) {
 			final SootClass callbackClass = Scene.v().getSootClass(
@@ -293,7 +594,8 @@ public class Application {
 							layoutFileName);
 					if (controls != null)
 						for (LayoutControl lc : controls)
-							registerCallbackMethodsForView(callbackClass, lc);
+							registerCallbackMethodsForView(callbackClass, lc,
+									frameworkMethods);
 				} else
 					System.err
 							.println("Unexpected resource type for layout class");
@@ -308,15 +610,23 @@ public class Application {
 	}
 
 	/**
-	 * Initializes soot for running the soot-based phases of the application
-	 * callback calculation
+	 * Initializes soot and loads the classes of the application. Used both
+	 * by the callback calculation and by the analyzer. A shared scene keeps
+	 * the library bodies, so it is set up exactly like the scene the
+	 * analyzer would build on its own.
+	 * 
+	 * @param libraryBodies
+	 *            True to load the bodies of excluded library classes, which
+	 *            the analyzer builds its callgraph through
 	 */
-	private void initSoot() {
+	void initSoot(boolean libraryBodies) {
+		PlatformSnapshot snapshot = PlatformClassProvider.getSnapshot(
+				this.androidJarPath, this.config);
 		G.reset();
 		
 		Helper.setOutput();
 		
-		Options.v().set_no_bodies_for_excluded(true);
+		Options.v().set_no_bodies_for_excluded(!libraryBodies);
 		Options.v().set_allow_phantom_refs(true);
 		Options.v().set_output_format(Options.output_format_none);
 		Options.v().set_whole_program(true);
@@ -324,29 +634,65 @@ public class Application {
 		Options.v().set_soot_classpath(this.androidJarPath);
 		Options.v().set_android_jars(this.androidPlatformPath);
 		Options.v().set_src_prec(Options.src_prec_apk);
+		Options.v().set_keep_offset(true);
 		soot.Main.v().autoSetOptions();
 
 		// Configure the callgraph algorithm
-		switch (callgraphAlgorithm) {
-		case AutomaticSelection:
-			Options.v().setPhaseOption("cg.spark", "on");
-			break;
-		case RTA:
-			Options.v().setPhaseOption("cg.spark", "on");
-			Options.v().setPhaseOption("cg.spark", "rta:true");
-			break;
-		case VTA:
-			Options.v().setPhaseOption("cg.spark", "on");
-			Options.v().setPhaseOption("cg.spark", "vta:true");
-			break;
-		default:
-			throw new RuntimeException("Invalid callgraph algorithm");
-		}
+		this.callgraphAlgorithm.apply();
+
+		if (snapshot != null)
+			PlatformClassProvider.install(snapshot);
+
+		// The analyzer needs this class to check for traps
+		Scene.v().addBasicClass("java.lang.SecurityException");
 
 		// Load whatever we need
 		Scene.v().loadNecessaryClasses();
 	}
 
+	/**
+	 * Builds the callgraph of the current scene. The construction cannot be
+	 * interrupted, so an application with more methods than the
+	 * configuration allows, or with too little heap left, gets a CHA
+	 * callgraph instead before it starts. This holds for the rest of the
+	 * run, and a graph once built is never thrown away.
+	 */
+	void buildCallgraph() {
+		Budget budget = this.config.createPhaseBudget();
+		if (this.callgraphAlgorithm != CallgraphAlgorithm.CHA) {
+			int limit = this.config.getCallgraphMethodLimit();
+			if ((limit > 0 && countApplicationMethods() > limit)
+					|| !budget.hasHeapHeadroom()) {
+				this.callgraphAlgorithm = CallgraphAlgorithm.CHA;
+				this.callgraphAlgorithm.apply();
+				addDegradation("callgraph:CHA");
+			}
+		}
+
+		long startTime = System.nanoTime();
+		PackManager.v().getPack("cg").apply();
+		this.callgraphOverBudget = budget.isExceeded(startTime);
+	}
+
+	private int countApplicationMethods() {
+		int count = 0;
+		for (SootClass sc : Scene.v().getApplicationClasses())
+			count += sc.getMethodCount();
+		return count;
+	}
+
+	/**
+	 * Drops the callgraph and everything derived from it so that the soot-based
+	 * phases can be run again on the loaded classes
+	 */
+	private void releaseCallgraph() {
+		Scene.v().releaseCallGraph();
+		Scene.v().releasePointsToAnalysis();
+		Scene.v().releaseReachableMethods();
+		Scene.v().releaseActiveHierarchy();
+		Scene.v().releaseFastHierarchy();
+	}
+
 	/**
 	 * Creates the main method based on the current callback information,
 	 * injects it into the Soot scene.
@@ -402,9 +748,11 @@ public class Application {
 	 * @param lc
 	 *            The layout control whose callbacks are to be associated with
 	 *            the given class
+	 * @param frameworkMethods
+	 *            The methods of the framework classes
 	 */
 	private void registerCallbackMethodsForView(SootClass callbackClass,
-			LayoutControl lc) {
+			LayoutControl lc, FrameworkMethodIndex frameworkMethods) {
 		// Ignore system classes
 		if (callbackClass.getName().startsWith("android."))
 			return;
@@ -430,22 +778,9 @@ public class Application {
 		// methods.
 		// We model this as follows: Whenever the user overwrites a method in an
 		// Android OS class, we treat it as a potential callback.
-		SootClass sc = lc.getViewClass();
-		Set<String> systemMethods = new HashSet<String>(10000);
-		for (SootClass parentClass : Scene.v().getActiveHierarchy()
-				.getSuperclassesOf(sc)) {
-			if (parentClass.getName().startsWith("android."))
-				for (SootMethod sm : parentClass.getMethods())
-					if (!sm.isConstructor())
-						systemMethods.add(sm.getSubSignature());
-		}
-
-		// Scan for methods that overwrite parent class methods
-		for (SootMethod sm : sc.getMethods())
-			if (!sm.isConstructor())
-				if (systemMethods.contains(sm.getSubSignature()))
-					// This is a real callback method
-					addCallbackMethod(callbackClass.getName(),
-							new AndroidMethod(sm));
+		for (SootMethod sm : frameworkMethods.getOverridingMethods(lc
+				.getViewClass()))
+			// This is a real callback method
+			addCallbackMethod(callbackClass.getName(), new AndroidMethod(sm));
 	}
 }
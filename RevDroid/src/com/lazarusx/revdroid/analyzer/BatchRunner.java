@@ -0,0 +1,304 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import soot.G;
+import soot.Scene;
+
+/**
+ * Analyzes a batch of APKs in one JVM. The PScout result is loaded once
+ * and shared by all applications, and every APK gets one result record
+ * written as a single JSON line. An APK whose analysis fails is reported
+ * as such without stopping the batch.
+ */
+public class BatchRunner {
+	private final String androidPlatformPath;
+	private final PScoutParser pscoutParser;
+	private final Configuration config;
+	private ResultCache resultCache;
+
+	/**
+	 * The outcome of analyzing a single APK
+	 */
+	public static class Result {
+		private final boolean successful;
+		private final String record;
+
+		Result(boolean successful, String record) {
+			this.successful = successful;
+			this.record = record;
+		}
+
+		public boolean isSuccessful() {
+			return successful;
+		}
+
+		/**
+		 * Gets the result record of the APK as a single line of JSON
+		 */
+		public String getRecord() {
+			return record;
+		}
+	}
+
+	public BatchRunner(String androidPlatformPath, String pscoutResultPath,
+			Configuration config) throws IOException {
+		this.androidPlatformPath = androidPlatformPath;
+		this.pscoutParser = PScoutParser.fromFile(pscoutResultPath);
+		this.config = config;
+
+		// Load the PScout result up front instead of with the first APK
+		this.pscoutParser.getStore();
+	}
+
+	/**
+	 * Sets the cache results are looked up in before an APK is analyzed
+	 *
+	 * @param resultCache
+	 *            The cache, or null to always analyze
+	 */
+	public void setResultCache(ResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	public ResultCache getResultCache() {
+		return this.resultCache;
+	}
+
+	/**
+	 * Collects the APKs to analyze
+	 *
+	 * @param source
+	 *            A directory which is searched recursively for APK files, a
+	 *            glob pattern in its last path component such as
+	 *            /data/apks/*.apk, or a manifest file listing one APK per
+	 *            line
+	 * @return The paths of the APKs in a stable order
+	 * @throws IOException
+	 *             Thrown if the source cannot be read
+	 */
+	public static List<String> collectApks(String source) throws IOException {
+		final List<String> apkPaths = new ArrayList<String>();
+		File file = new File(source);
+
+		if (file.isDirectory()) {
+			Files.walkFileTree(file.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path path,
+						BasicFileAttributes attrs) {
+					if (path.toString().endsWith(".apk"))
+						apkPaths.add(path.toString());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			Collections.sort(apkPaths);
+		} else if (file.getName().contains("*")
+				|| file.getName().contains("?")) {
+			Path dir = file.getParentFile() == null ? Paths.get(".") : file
+					.getParentFile().toPath();
+			DirectoryStream<Path> stream = Files.newDirectoryStream(dir,
+					file.getName());
+			try {
+				for (Path path : stream)
+					apkPaths.add(path.toString());
+			} finally {
+				stream.close();
+			}
+			Collections.sort(apkPaths);
+		} else if (source.endsWith(".apk")) {
+			apkPaths.add(source);
+		} else {
+			// Manifest paths are relative to the manifest itself
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#"))
+						continue;
+					File apk = new File(line);
+					if (!apk.isAbsolute())
+						apk = new File(file.getAbsoluteFile().getParentFile(),
+								line);
+					apkPaths.add(apk.getPath());
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		return apkPaths;
+	}
+
+	/**
+	 * Analyzes all given APKs and writes one result record per APK
+	 *
+	 * @param apkPaths
+	 *            The APKs to analyze
+	 * @param out
+	 *            The stream to write the result records to
+	 * @return The number of APKs whose analysis failed
+	 */
+	public int run(List<String> apkPaths, PrintStream out) {
+		int failures = 0;
+		for (String apkPath : apkPaths) {
+			Result result = analyze(apkPath);
+			if (!result.isSuccessful())
+				failures++;
+			out.println(result.getRecord());
+			out.flush();
+		}
+		return failures;
+	}
+
+	/**
+	 * Analyzes a single APK
+	 *
+	 * @param apkPath
+	 *            The APK to analyze
+	 * @return The result of the APK
+	 */
+	public Result analyze(String apkPath) {
+		long startTime = System.nanoTime();
+		Application app = null;
+		Analyzer analyzer = null;
+		Throwable failure = null;
+
+		String cacheKey = null;
+		if (this.resultCache != null) {
+			try {
+				cacheKey = ResultCache.computeKey(apkPath, Scene.v()
+						.getAndroidJarPath(this.androidPlatformPath, apkPath),
+						this.pscoutParser.getDigest(), this.config);
+				String misusages = this.resultCache.get(cacheKey);
+				if (misusages != null) {
+					return new Result(true, toCachedRecord(apkPath, misusages,
+							(System.nanoTime() - startTime) / 1000000));
+				}
+			} catch (Exception e) {
+				// The analysis will report whatever is wrong with the APK
+				cacheKey = null;
+			}
+		}
+
+		String misusages = null;
+		try {
+			app = new Application(this.androidPlatformPath, apkPath,
+					this.pscoutParser, this.config);
+			analyzer = new Analyzer(app);
+			analyzer.analyze();
+			misusages = toJson(analyzer.getMisusages());
+		} catch (Exception | StackOverflowError | OutOfMemoryError e) {
+			failure = e;
+		}
+
+		// Misusages do not refer to the scene, so it can be let go of before
+		// the record is written. Prefiltered APKs never got one.
+		boolean prefiltered = app != null && app.isPrefiltered();
+		analyzer = null;
+		if (!prefiltered)
+			G.reset();
+
+		// Partial results depend on the load of the machine, so they are
+		// not cached
+		if (cacheKey != null && misusages != null && !app.isPartial()) {
+			try {
+				this.resultCache.put(cacheKey, misusages);
+			} catch (IOException e) {
+				System.err.println("Could not cache the result of " + apkPath
+						+ ": " + e.getMessage());
+			}
+		}
+
+		String record = toRecord(apkPath, app, misusages, failure,
+				(System.nanoTime() - startTime) / 1000000);
+		if (app != null && this.config.getMetricsDirectory() != null) {
+			try {
+				app.getMetrics().write(this.config.getMetricsDirectory(),
+						apkPath, this.config.getMetricsFormat());
+			} catch (IOException e) {
+				System.err.println("Could not write the metrics of " + apkPath
+						+ ": " + e.getMessage());
+			}
+		}
+
+		return new Result(failure == null, record);
+	}
+
+	private static String toCachedRecord(String apkPath, String misusages,
+			long duration) {
+		return "{\"apk\":" + Helper.quoteJson(apkPath)
+				+ ",\"status\":\"ok\",\"time\":" + duration
+				+ ",\"cached\":true,\"misusages\":" + misusages + "}";
+	}
+
+	private static String toRecord(String apkPath, Application app,
+			String misusages, Throwable failure, long duration) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"apk\":").append(Helper.quoteJson(apkPath));
+		if (failure == null) {
+			sb.append(",\"status\":\"ok\"");
+		} else {
+			sb.append(",\"status\":\"error\",\"error\":").append(
+					Helper.quoteJson(failure.toString()));
+		}
+		sb.append(",\"time\":").append(duration);
+
+		if (app != null) {
+			sb.append(",\"package\":").append(
+					Helper.quoteJson(app.getPackageName()));
+			if (app.isPrefiltered())
+				sb.append(",\"prefiltered\":true");
+			if (app.isPartial()) {
+				sb.append(",\"partial\":true,\"degradations\":[");
+				boolean first = true;
+				for (String degradation : app.getDegradations()) {
+					if (!first)
+						sb.append(',');
+					first = false;
+					sb.append(Helper.quoteJson(degradation));
+				}
+				sb.append(']');
+			}
+			sb.append(",\"metrics\":").append(app.getMetrics().toJson());
+		}
+
+		if (misusages != null) {
+			sb.append(",\"misusages\":").append(misusages);
+		}
+
+		sb.append('}');
+		return sb.toString();
+	}
+
+	private static String toJson(Collection<Misusage> misusages) {
+		StringBuilder sb = new StringBuilder();
+		sb.append('[');
+		boolean first = true;
+		for (Misusage misusage : misusages) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append('{');
+			misusage.appendJsonMembers(sb);
+			sb.append('}');
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+}
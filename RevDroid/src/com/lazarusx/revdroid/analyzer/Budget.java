@@ -0,0 +1,85 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits the time and heap a single phase may use. Phases like SPARK or
+ * the inter-procedural constant propagation cannot be interrupted without
+ * leaving the scene inconsistent, so a budget is only checked at safe
+ * points: between the iterations of a phase, before a phase starts, or
+ * once a phase is done. The hard limit on a whole analysis is the timeout
+ * of the worker processes.
+ *
+ * The heap of a phase is the live heap after the latest garbage
+ * collections, which grows with what the phase keeps, not with what it
+ * throws away.
+ */
+public class Budget {
+	private static final List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+
+	static {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP
+					&& pool.isCollectionUsageThresholdSupported())
+				heapPools.add(pool);
+	}
+
+	private final long timeLimit;
+	private final long heapLimit;
+
+	/**
+	 * @param timeLimit
+	 *            The wall time a phase may take in milliseconds, or 0 for no
+	 *            limit
+	 * @param heapLimit
+	 *            The live heap a phase may reach in bytes, or 0 for no limit
+	 */
+	public Budget(long timeLimit, long heapLimit) {
+		this.timeLimit = timeLimit;
+		this.heapLimit = heapLimit;
+	}
+
+	public boolean isLimited() {
+		return this.timeLimit > 0 || this.heapLimit > 0;
+	}
+
+	/**
+	 * Checks whether a phase running since the given time has exceeded this
+	 * budget. Phases check this at their safe points.
+	 *
+	 * @param startTime
+	 *            The start of the phase as given by System.nanoTime()
+	 * @return True if the phase should stop
+	 */
+	public boolean isExceeded(long startTime) {
+		return (this.timeLimit > 0 && (System.nanoTime() - startTime) / 1000000 > this.timeLimit)
+				|| (this.heapLimit > 0 && getLiveHeap() > this.heapLimit);
+	}
+
+	/**
+	 * Checks whether a phase starting now leaves enough of this budget's
+	 * heap to the phase, i.e., whether less than half of it is in use
+	 * already. Phases which cannot be interrupted check this before they
+	 * start.
+	 * 
+	 * @return True if the phase may start
+	 */
+	public boolean hasHeapHeadroom() {
+		return this.heapLimit <= 0 || getLiveHeap() < this.heapLimit / 2;
+	}
+
+	private static long getLiveHeap() {
+		long used = 0;
+		for (MemoryPoolMXBean pool : heapPools) {
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (usage != null)
+				used += usage.getUsed();
+		}
+		return used;
+	}
+}
@@ -0,0 +1,85 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import soot.MethodOrMethodContext;
+import soot.Scene;
+import soot.SootMethod;
+import soot.Unit;
+import soot.jimple.toolkits.ide.icfg.JimpleBasedInterproceduralCFG;
+
+/**
+ * Reverse callgraph index mapping every reachable method to the statements
+ * calling it, together with the methods containing these statements. The
+ * index is built once per analysis run from a single interprocedural CFG
+ * and must be rebuilt whenever the callgraph changes.
+ */
+public class CallerIndex {
+	private final JimpleBasedInterproceduralCFG icfg;
+	private final Map<SootMethod, List<Unit>> callers;
+	private final Map<Unit, SootMethod> owners;
+
+	public CallerIndex() {
+		this.icfg = new JimpleBasedInterproceduralCFG();
+		this.callers = new HashMap<SootMethod, List<Unit>>();
+		this.owners = new HashMap<Unit, SootMethod>();
+
+		Iterator<MethodOrMethodContext> iterator = Scene.v()
+				.getReachableMethods().listener();
+		while (iterator.hasNext()) {
+			SootMethod sm = iterator.next().method();
+			Collection<Unit> callSites = this.icfg.getCallersOf(sm);
+			if (callSites.isEmpty())
+				continue;
+
+			List<Unit> units = new ArrayList<Unit>(callSites);
+			this.callers.put(sm, units);
+			for (Unit u : units) {
+				if (!this.owners.containsKey(u))
+					this.owners.put(u, this.icfg.getMethodOf(u));
+			}
+		}
+	}
+
+	/**
+	 * Gets the statements calling the given method
+	 * 
+	 * @param sm
+	 *            The callee
+	 * @return The calling statements, empty if the method has no callers
+	 */
+	public List<Unit> getCallersOf(SootMethod sm) {
+		List<Unit> units = this.callers.get(sm);
+		if (units == null)
+			return Collections.emptyList();
+		return units;
+	}
+
+	/**
+	 * Gets the method containing the given calling statement
+	 * 
+	 * @param u
+	 *            A statement returned by {@link #getCallersOf(SootMethod)}
+	 * @return The method containing the statement
+	 */
+	public SootMethod getMethodOf(Unit u) {
+		SootMethod sm = this.owners.get(u);
+		if (sm == null)
+			sm = this.icfg.getMethodOf(u);
+		return sm;
+	}
+
+	public JimpleBasedInterproceduralCFG getICFG() {
+		return this.icfg;
+	}
+
+	public int size() {
+		return this.callers.size();
+	}
+}
@@ -0,0 +1,45 @@
+package com.lazarusx.revdroid.analyzer;
+
+import soot.options.Options;
+
+/**
+ * The algorithms the callgraph can be built with, from the fastest and
+ * least precise to the slowest and most precise. The same algorithm is used
+ * for the callback calculation and the analysis of a run.
+ */
+public enum CallgraphAlgorithm {
+	// Class hierarchy analysis, which does not need a points-to analysis
+	CHA,
+	// Rapid type analysis on top of SPARK
+	RTA,
+	// Variable type analysis on top of SPARK
+	VTA,
+	// SPARK with a full points-to analysis
+	SPARK;
+
+	/**
+	 * Sets the phase options selecting this algorithm. Must be called after
+	 * the Soot options have been set automatically, which would reset them.
+	 */
+	public void apply() {
+		switch (this) {
+		case CHA:
+			Options.v().setPhaseOption("cg.spark", "off");
+			Options.v().setPhaseOption("cg.cha", "on");
+			break;
+		case RTA:
+			Options.v().setPhaseOption("cg.spark", "on");
+			Options.v().setPhaseOption("cg.spark", "rta:true");
+			break;
+		case VTA:
+			Options.v().setPhaseOption("cg.spark", "on");
+			Options.v().setPhaseOption("cg.spark", "vta:true");
+			break;
+		case SPARK:
+			Options.v().setPhaseOption("cg.spark", "on");
+			break;
+		default:
+			throw new RuntimeException("Invalid callgraph algorithm");
+		}
+	}
+}
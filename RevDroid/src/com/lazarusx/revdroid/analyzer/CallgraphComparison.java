@@ -0,0 +1,167 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import soot.G;
+
+/**
+ * Analyzes one APK with every callgraph algorithm and reports the time,
+ * memory, callgraph size and misusages of each run, so the trade-off
+ * between precision and speed can be judged per workload.
+ *
+ * Every algorithm gets one JSON line. Misusages are compared with those
+ * found with SPARK, the most precise algorithm.
+ */
+public class CallgraphComparison {
+	private final String androidPlatformPath;
+	private final PScoutParser pscoutParser;
+	private final Configuration config;
+
+	/**
+	 * The outcome of analyzing the APK with a single algorithm
+	 */
+	private static class Run {
+		CallgraphAlgorithm algorithm;
+		Throwable failure;
+		long time;
+		long peakHeap;
+		long callgraphEdges = -1;
+		boolean partial;
+		Set<String> misusages = new LinkedHashSet<String>();
+	}
+
+	public CallgraphComparison(String androidPlatformPath,
+			String pscoutResultPath, Configuration config) throws IOException {
+		this.androidPlatformPath = androidPlatformPath;
+		this.pscoutParser = PScoutParser.fromFile(pscoutResultPath);
+		this.config = config;
+		// Every algorithm is measured from scratch
+		this.config.setIncrementalDirectory(null);
+	}
+
+	/**
+	 * Analyzes the given APK once per callgraph algorithm
+	 *
+	 * @param apkPath
+	 *            The APK to analyze
+	 * @param out
+	 *            The stream to write one record per algorithm to
+	 * @return The number of algorithms whose run failed
+	 */
+	public int run(String apkPath, PrintStream out) {
+		List<Run> runs = new ArrayList<Run>();
+		Run reference = null;
+		for (CallgraphAlgorithm algorithm : CallgraphAlgorithm.values()) {
+			Run run = analyze(apkPath, algorithm);
+			runs.add(run);
+			if (algorithm == CallgraphAlgorithm.SPARK)
+				reference = run;
+		}
+
+		int failures = 0;
+		for (Run run : runs) {
+			if (run.failure != null)
+				failures++;
+			out.println(toRecord(apkPath, run, reference));
+		}
+		out.flush();
+		return failures;
+	}
+
+	private Run analyze(String apkPath, CallgraphAlgorithm algorithm) {
+		Run run = new Run();
+		run.algorithm = algorithm;
+		this.config.setCallgraphAlgorithm(algorithm);
+
+		// Leave as little of the previous run on the heap as possible
+		G.reset();
+		System.gc();
+
+		long startTime = System.nanoTime();
+		try {
+			Application app = new Application(this.androidPlatformPath,
+					apkPath, this.pscoutParser, this.config);
+			Analyzer analyzer = new Analyzer(app);
+			analyzer.analyze();
+			run.time = (System.nanoTime() - startTime) / 1000000;
+			run.partial = app.isPartial();
+
+			for (Metrics.Phase phase : app.getMetrics().getPhases().values())
+				run.peakHeap = Math.max(run.peakHeap, phase.getPeakHeap());
+			Long edges = app.getMetrics().getCounts().get("callgraph_edges");
+			if (edges != null)
+				run.callgraphEdges = edges;
+			for (Misusage misusage : analyzer.getMisusages())
+				run.misusages.add(toKey(misusage));
+		} catch (Exception | StackOverflowError | OutOfMemoryError e) {
+			run.time = (System.nanoTime() - startTime) / 1000000;
+			run.failure = e;
+		}
+
+		G.reset();
+		return run;
+	}
+
+	private static String toKey(Misusage misusage) {
+		StringBuilder sb = new StringBuilder("{");
+		sb.append("\"method\":")
+				.append(Helper.quoteJson(misusage.getEnclosingMethod()))
+				.append(",\"statement\":")
+				.append(Helper.quoteJson(misusage.getStatement()))
+				.append(",\"api\":")
+				.append(Helper.quoteJson(misusage.getMethod().getSignature()))
+				.append('}');
+		return sb.toString();
+	}
+
+	private static String toRecord(String apkPath, Run run, Run reference) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"apk\":").append(Helper.quoteJson(apkPath))
+				.append(",\"algorithm\":\"").append(run.algorithm.name())
+				.append('"');
+		if (run.failure == null) {
+			sb.append(",\"status\":\"ok\"");
+		} else {
+			sb.append(",\"status\":\"error\",\"error\":").append(
+					Helper.quoteJson(run.failure.toString()));
+		}
+		sb.append(",\"time\":").append(run.time).append(",\"peakHeapBytes\":")
+				.append(run.peakHeap).append(",\"callgraphEdges\":")
+				.append(run.callgraphEdges);
+		if (run.partial)
+			sb.append(",\"partial\":true");
+
+		if (run.failure == null) {
+			sb.append(",\"misusages\":").append(run.misusages.size());
+			if (reference != null && reference.failure == null) {
+				// The keys are JSON objects already
+				sb.append(",\"additional\":");
+				appendDifference(sb, run.misusages, reference.misusages);
+				sb.append(",\"missing\":");
+				appendDifference(sb, reference.misusages, run.misusages);
+			}
+		}
+		sb.append('}');
+		return sb.toString();
+	}
+
+	private static void appendDifference(StringBuilder sb, Set<String> a,
+			Set<String> b) {
+		sb.append('[');
+		boolean first = true;
+		for (String key : a) {
+			if (b.contains(key))
+				continue;
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append(key);
+		}
+		sb.append(']');
+	}
+}
@@ -0,0 +1,477 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import soot.Body;
+import soot.G;
+import soot.IdentityUnit;
+import soot.IntType;
+import soot.Local;
+import soot.LongType;
+import soot.NullType;
+import soot.RefType;
+import soot.Timers;
+import soot.Trap;
+import soot.Type;
+import soot.Unit;
+import soot.Value;
+import soot.ValueBox;
+import soot.jimple.ArrayRef;
+import soot.jimple.AssignStmt;
+import soot.jimple.BinopExpr;
+import soot.jimple.CastExpr;
+import soot.jimple.DefinitionStmt;
+import soot.jimple.DivExpr;
+import soot.jimple.FieldRef;
+import soot.jimple.InstanceFieldRef;
+import soot.jimple.IntConstant;
+import soot.jimple.InvokeExpr;
+import soot.jimple.LongConstant;
+import soot.jimple.NewArrayExpr;
+import soot.jimple.NewExpr;
+import soot.jimple.NewMultiArrayExpr;
+import soot.jimple.NopStmt;
+import soot.jimple.NullConstant;
+import soot.jimple.RemExpr;
+import soot.options.Options;
+import soot.toolkits.graph.ExceptionalUnitGraph;
+import soot.toolkits.graph.ExceptionalUnitGraph.ExceptionDest;
+import soot.util.Chain;
+
+/**
+ * Removes the same statements as {@link RevDroidDeadAssignmentEliminator},
+ * which is kept as the reference implementation, without allocating per
+ * statement. Units and locals are numbered once per body, essential units
+ * are tracked in a bitset, and the definitions reaching a use are found by
+ * walking the unit graph backwards instead of computing LocalDefs for the
+ * whole body. A walk for a local never revisits a unit another walk for the
+ * same local has already passed. Like the flow analysis behind LocalDefs,
+ * the walk passes the definitions before a unit, not the one it makes, on
+ * to the handler the unit throws to. All buffers are kept per thread and
+ * reused across bodies.
+ *
+ * The analyzer only uses it if {@link Configuration#isCompactDeadCode()}
+ * is set, until DeadCodeCheck has confirmed it on real apps.
+ */
+public class CompactDeadAssignmentEliminator {
+	private static CompactDeadAssignmentEliminator instance = null;
+
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	protected CompactDeadAssignmentEliminator() {
+	}
+
+	public static CompactDeadAssignmentEliminator v() {
+		if (instance == null) {
+			instance = new CompactDeadAssignmentEliminator();
+		}
+		return instance;
+	}
+
+	/**
+	 * Eliminates dead assignments to temporaries, keeping every statement
+	 * that may have side effects and everything it depends on
+	 *
+	 * @param b
+	 *            The body to transform
+	 */
+	public void transform(Body b) {
+		if (Options.v().verbose()) {
+			G.v().out.println("[" + b.getMethod().getName() + "] Eliminating dead code...");
+		}
+
+		if (Options.v().time()) {
+			Timers.v().deadCodeTimer.start();
+		}
+
+		Chain<Unit> units = b.getUnits();
+		Scratch s = scratch.get();
+		s.reset(units.size());
+		try {
+			boolean isStatic = b.getMethod().isStatic();
+			boolean allEssential = true;
+			Local thisLocal = null;
+
+			// Make a first pass through the statements, numbering them and
+			// noting the statements we must absolutely keep
+			for (Iterator<Unit> it = units.iterator(); it.hasNext(); ) {
+				Unit u = it.next();
+				boolean isEssential = true;
+
+				if (u instanceof NopStmt) {
+					// Do not remove a nop used as the end of a trap at the very
+					// end of the code
+					boolean removeNop = it.hasNext();
+					if (!removeNop) {
+						removeNop = true;
+						for (Trap t : b.getTraps()) {
+							if (t.getEndUnit() == u) {
+								removeNop = false;
+								break;
+							}
+						}
+					}
+
+					if (removeNop) {
+						it.remove();
+						continue;
+					}
+				} else if (u instanceof AssignStmt) {
+					AssignStmt as = (AssignStmt) u;
+					Value lhs = as.getLeftOp();
+					Value rhs = as.getRightOp();
+
+					// Stmt is of the form a = a which is useless
+					if (lhs == rhs && lhs instanceof Local) {
+						it.remove();
+						continue;
+					}
+
+					if (lhs instanceof Local
+							&& (((Local) lhs).getName().startsWith("$") || lhs
+									.getType() instanceof NullType)) {
+						if (rhs instanceof InstanceFieldRef && !isStatic
+								&& thisLocal == null)
+							thisLocal = b.getThisLocal();
+						isEssential = hasSideEffects(rhs, isStatic, thisLocal);
+					}
+				}
+
+				int number = s.add(u);
+				if (isEssential)
+					s.markEssential(number);
+				allEssential &= isEssential;
+			}
+
+			if (!allEssential) {
+				// Add all the statements which are used to compute values for
+				// the essential statements, recursively
+				ExceptionalUnitGraph graph = Helper.newExceptionalUnitGraph(b);
+				while (s.worklistSize > 0) {
+					int number = s.worklist[--s.worklistSize];
+					for (ValueBox box : s.units[number].getUseBoxes()) {
+						Value v = box.getValue();
+						if (v instanceof Local)
+							markReachingDefinitions(s, graph, (Local) v, number);
+					}
+				}
+
+				// Remove the dead statements
+				for (Iterator<Unit> it = units.iterator(); it.hasNext(); ) {
+					if (!s.isEssential(s.unitNumbers.get(it.next())))
+						it.remove();
+				}
+			}
+		} finally {
+			s.release();
+		}
+
+		if (Options.v().time()) {
+			Timers.v().deadCodeTimer.end();
+		}
+	}
+
+	/**
+	 * Checks whether the right hand side of an assignment to a temporary
+	 * must be kept, following the rules of the reference implementation
+	 */
+	private static boolean hasSideEffects(Value rhs, boolean isStatic,
+			Local thisLocal) {
+		if (rhs instanceof CastExpr) {
+			// Can trigger ClassCastException, but null-casts never fail
+			CastExpr ce = (CastExpr) rhs;
+			Type t = ce.getCastType();
+			return !(t instanceof RefType && ce.getOp() == NullConstant.v());
+		}
+		if (rhs instanceof InvokeExpr || rhs instanceof ArrayRef
+				|| rhs instanceof NewExpr || rhs instanceof NewArrayExpr
+				|| rhs instanceof NewMultiArrayExpr)
+			return true;
+		if (rhs instanceof FieldRef) {
+			// Can trigger class initialization, and any InstanceFieldRef may
+			// have side effects unless it reads from 'this' in a non-static
+			// method
+			if (rhs instanceof InstanceFieldRef)
+				return isStatic
+						|| thisLocal != ((InstanceFieldRef) rhs).getBase();
+			return true;
+		}
+		if (rhs instanceof DivExpr || rhs instanceof RemExpr) {
+			BinopExpr expr = (BinopExpr) rhs;
+			Type t1 = expr.getOp1().getType();
+			Type t2 = expr.getOp2().getType();
+
+			// Can trigger a division by zero
+			boolean isEssential = IntType.v().equals(t1)
+					|| LongType.v().equals(t1) || IntType.v().equals(t2)
+					|| LongType.v().equals(t2);
+			if (isEssential && IntType.v().equals(t2)) {
+				Value v = expr.getOp2();
+				if (v instanceof IntConstant)
+					isEssential = ((IntConstant) v).value == 0;
+			}
+			if (isEssential && LongType.v().equals(t2)) {
+				Value v = expr.getOp2();
+				if (v instanceof LongConstant)
+					isEssential = ((LongConstant) v).value == 0;
+			}
+			return isEssential;
+		}
+		return false;
+	}
+
+	/**
+	 * Marks the definitions of the given local reaching the given unit as
+	 * essential. Stack entries are unit numbers shifted left by one, with
+	 * the lowest bit set if the unit has been reached from the handler it
+	 * throws to, in which case its own definition does not count.
+	 */
+	private static void markReachingDefinitions(Scratch s,
+			ExceptionalUnitGraph graph, Local local, int use) {
+		long base = (long) s.localNumber(local) * s.unitCount;
+		int top = pushPredecessors(s, graph, base, use, 0);
+		while (top > 0) {
+			int entry = s.stack[--top];
+			int number = entry >>> 1;
+			if ((entry & 1) == 0 && s.definitions[number] == local) {
+				// The definition kills all definitions before it
+				s.markEssential(number);
+				continue;
+			}
+			top = pushPredecessors(s, graph, base, number, top);
+		}
+	}
+
+	private static int pushPredecessors(Scratch s, ExceptionalUnitGraph graph,
+			long base, int number, int top) {
+		Unit u = s.units[number];
+		for (Unit pred : graph.getPredsOf(u)) {
+			int predNumber = s.unitNumbers.get(pred);
+			int entry = predNumber << 1 | (isThrownTo(graph, pred, u) ? 1 : 0);
+			if (s.visited.add((base + predNumber) << 1 | (entry & 1)))
+				top = s.push(top, entry);
+		}
+		return top;
+	}
+
+	/**
+	 * Checks whether the edge between two units leads to a handler the first
+	 * unit throws to, the same way the flow analyses of Soot do
+	 */
+	private static boolean isThrownTo(ExceptionalUnitGraph graph, Unit from,
+			Unit to) {
+		if (!(to instanceof IdentityUnit))
+			return false;
+		for (ExceptionDest dest : graph.getExceptionDests(from)) {
+			Trap trap = dest.getTrap();
+			if (trap != null && trap.getHandlerUnit() == to)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The buffers of one thread
+	 */
+	private static class Scratch {
+		final IdentityIntMap unitNumbers = new IdentityIntMap();
+		final IdentityIntMap localNumbers = new IdentityIntMap();
+		// Pairs of local and unit number whose reaching definitions are
+		// being or have been collected
+		final LongSet visited = new LongSet();
+
+		Unit[] units = new Unit[64];
+		// The local defined by every unit, if any
+		Local[] definitions = new Local[64];
+		long[] essential = new long[1];
+		int[] worklist = new int[64];
+		int[] stack = new int[128];
+		int unitCount;
+		int worklistSize;
+
+		void reset(int capacity) {
+			if (this.units.length < capacity) {
+				int length = Math.max(capacity, this.units.length * 2);
+				this.units = new Unit[length];
+				this.definitions = new Local[length];
+				this.worklist = new int[length];
+				// Every unit may be on the stack twice, see markReachingDefinitions
+				this.stack = new int[2 * length];
+			}
+			int words = (capacity + 63) >>> 6;
+			if (this.essential.length < words)
+				this.essential = new long[Math.max(words,
+						this.essential.length * 2)];
+			else
+				Arrays.fill(this.essential, 0, words, 0L);
+			this.unitCount = 0;
+			this.worklistSize = 0;
+		}
+
+		int add(Unit u) {
+			int number = this.unitCount++;
+			this.units[number] = u;
+			this.definitions[number] = null;
+			if (u instanceof DefinitionStmt) {
+				Value lhs = ((DefinitionStmt) u).getLeftOp();
+				if (lhs instanceof Local)
+					this.definitions[number] = (Local) lhs;
+			}
+			this.unitNumbers.put(u, number);
+			return number;
+		}
+
+		int localNumber(Local local) {
+			int number = this.localNumbers.get(local);
+			if (number < 0) {
+				number = this.localNumbers.size();
+				this.localNumbers.put(local, number);
+			}
+			return number;
+		}
+
+		boolean isEssential(int number) {
+			return (this.essential[number >>> 6] & (1L << number)) != 0;
+		}
+
+		void markEssential(int number) {
+			if (!isEssential(number)) {
+				this.essential[number >>> 6] |= 1L << number;
+				this.worklist[this.worklistSize++] = number;
+			}
+		}
+
+		int push(int top, int number) {
+			this.stack[top] = number;
+			return top + 1;
+		}
+
+		/**
+		 * Drops all references into the last body so that it can be
+		 * collected
+		 */
+		void release() {
+			Arrays.fill(this.units, 0, this.unitCount, null);
+			Arrays.fill(this.definitions, 0, this.unitCount, null);
+			this.unitNumbers.clear();
+			this.localNumbers.clear();
+			this.visited.clear();
+		}
+	}
+
+	/**
+	 * Open addressing map from objects, compared by identity, to
+	 * non-negative ints
+	 */
+	private static class IdentityIntMap {
+		private Object[] keys = new Object[64];
+		private int[] values = new int[64];
+		private int size = 0;
+
+		int get(Object key) {
+			int mask = this.keys.length - 1;
+			for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+				Object k = this.keys[i];
+				if (k == key)
+					return this.values[i];
+				if (k == null)
+					return -1;
+			}
+		}
+
+		void put(Object key, int value) {
+			if (2 * (this.size + 1) > this.keys.length)
+				grow();
+			int mask = this.keys.length - 1;
+			int i = hash(key) & mask;
+			while (this.keys[i] != null && this.keys[i] != key)
+				i = (i + 1) & mask;
+			if (this.keys[i] == null)
+				this.size++;
+			this.keys[i] = key;
+			this.values[i] = value;
+		}
+
+		int size() {
+			return this.size;
+		}
+
+		void clear() {
+			if (this.size > 0) {
+				Arrays.fill(this.keys, null);
+				this.size = 0;
+			}
+		}
+
+		private void grow() {
+			Object[] oldKeys = this.keys;
+			int[] oldValues = this.values;
+			this.keys = new Object[oldKeys.length * 2];
+			this.values = new int[oldKeys.length * 2];
+			this.size = 0;
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldKeys[i] != null)
+					put(oldKeys[i], oldValues[i]);
+		}
+
+		private static int hash(Object key) {
+			int h = System.identityHashCode(key);
+			return h ^ (h >>> 16);
+		}
+	}
+
+	/**
+	 * Open addressing set of non-negative longs
+	 */
+	private static class LongSet {
+		// Elements are stored incremented by one, so 0 marks a free slot
+		private long[] table = new long[64];
+		private int size = 0;
+
+		boolean add(long value) {
+			if (2 * (this.size + 1) > this.table.length)
+				grow();
+			return insert(value + 1);
+		}
+
+		void clear() {
+			if (this.size > 0) {
+				Arrays.fill(this.table, 0L);
+				this.size = 0;
+			}
+		}
+
+		private boolean insert(long element) {
+			int mask = this.table.length - 1;
+			int i = hash(element) & mask;
+			while (this.table[i] != 0) {
+				if (this.table[i] == element)
+					return false;
+				i = (i + 1) & mask;
+			}
+			this.table[i] = element;
+			this.size++;
+			return true;
+		}
+
+		private void grow() {
+			long[] oldTable = this.table;
+			this.table = new long[oldTable.length * 2];
+			this.size = 0;
+			for (long element : oldTable)
+				if (element != 0)
+					insert(element);
+		}
+
+		private static int hash(long element) {
+			long h = element * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
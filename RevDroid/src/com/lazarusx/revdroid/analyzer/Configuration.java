@@ -0,0 +1,285 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.io.File;
+
+/**
+ * Settings controlling how an application is set up and analyzed
+ */
+public class Configuration {
+	private boolean incrementalCallbacks = false;
+	private boolean sharedScene = false;
+	private boolean prefilter = true;
+	private boolean demandDriven = false;
+	private CallgraphAlgorithm callgraphAlgorithm = CallgraphAlgorithm.SPARK;
+	private boolean constantPropagation = true;
+	private boolean compactDeadCode = false;
+	private int misusageThreads = 1;
+	private long phaseTimeBudget = 0;
+	private long phaseHeapBudget = 0;
+	private int callgraphMethodLimit = 0;
+	private int constantPropagationEdgeLimit = 0;
+	private File platformCacheDirectory = null;
+	private File incrementalDirectory = null;
+	private File metricsDirectory = null;
+	private Metrics.Format metricsFormat = Metrics.Format.JSON;
+
+	/**
+	 * Gets whether the callback fixpoint keeps the loaded Soot scene across
+	 * iterations instead of re-initializing Soot in every iteration. The
+	 * callgraph is still built from scratch in every iteration, so this only
+	 * saves loading the classes again.
+	 * 
+	 * @return True if the callback fixpoint is computed incrementally
+	 */
+	public boolean isIncrementalCallbacks() {
+		return incrementalCallbacks;
+	}
+
+	public void setIncrementalCallbacks(boolean incrementalCallbacks) {
+		this.incrementalCallbacks = incrementalCallbacks;
+	}
+
+	/**
+	 * Gets whether the Soot scene, callgraph and dummy main method built
+	 * during the callback calculation are handed over to the analyzer
+	 * instead of loading all classes again
+	 * 
+	 * @return True if the application and the analyzer share one scene
+	 */
+	public boolean isSharedScene() {
+		return sharedScene;
+	}
+
+	public void setSharedScene(boolean sharedScene) {
+		this.sharedScene = sharedScene;
+	}
+
+	/**
+	 * Gets whether the dex files of an APK are checked for references to
+	 * the methods concerned before it is loaded into Soot. APKs without
+	 * such references are not analyzed any further.
+	 * 
+	 * @return True if APKs are prefiltered
+	 */
+	public boolean isPrefilter() {
+		return prefilter;
+	}
+
+	public void setPrefilter(boolean prefilter) {
+		this.prefilter = prefilter;
+	}
+
+	/**
+	 * Gets whether the analyzer scans the application classes for calls of
+	 * the methods concerned before building the callgraph, skips the rest of
+	 * the analysis if there are none, and otherwise only checks the
+	 * application methods containing such calls. The misusages found are the
+	 * same either way.
+	 * 
+	 * @return True if the analysis is demand-driven
+	 */
+	public boolean isDemandDriven() {
+		return demandDriven;
+	}
+
+	public void setDemandDriven(boolean demandDriven) {
+		this.demandDriven = demandDriven;
+	}
+
+	/**
+	 * Gets the algorithm the callgraph is built with, both for the callback
+	 * calculation and for the analysis
+	 * 
+	 * @return The callgraph algorithm
+	 */
+	public CallgraphAlgorithm getCallgraphAlgorithm() {
+		return callgraphAlgorithm;
+	}
+
+	public void setCallgraphAlgorithm(CallgraphAlgorithm callgraphAlgorithm) {
+		this.callgraphAlgorithm = callgraphAlgorithm;
+	}
+
+	/**
+	 * Gets whether the dead code elimination includes the inter-procedural
+	 * constant propagation
+	 * 
+	 * @return True if constants are propagated across methods
+	 */
+	public boolean isConstantPropagation() {
+		return constantPropagation;
+	}
+
+	public void setConstantPropagation(boolean constantPropagation) {
+		this.constantPropagation = constantPropagation;
+	}
+
+	/**
+	 * Gets whether dead assignments are eliminated by
+	 * {@link CompactDeadAssignmentEliminator} instead of
+	 * {@link RevDroidDeadAssignmentEliminator}
+	 * 
+	 * @return True if the compact eliminator is used
+	 */
+	public boolean isCompactDeadCode() {
+		return compactDeadCode;
+	}
+
+	public void setCompactDeadCode(boolean compactDeadCode) {
+		this.compactDeadCode = compactDeadCode;
+	}
+
+	/**
+	 * Gets the number of threads checking whether the sensitive call sites
+	 * are guarded. The misusages found do not depend on it.
+	 * 
+	 * @return The number of threads, 1 to run on the analyzing thread only
+	 */
+	public int getMisusageThreads() {
+		return misusageThreads;
+	}
+
+	public void setMisusageThreads(int misusageThreads) {
+		this.misusageThreads = misusageThreads;
+	}
+
+	/**
+	 * Gets the wall time the callback calculation and the callgraph
+	 * construction may take each. The callback iterations are then cut
+	 * short, and the inter-procedural constant propagation is skipped after
+	 * a callgraph which took longer. Either way the result is reported as
+	 * partial.
+	 * 
+	 * @return The budget in milliseconds, or 0 for no limit
+	 */
+	public long getPhaseTimeBudget() {
+		return phaseTimeBudget;
+	}
+
+	public void setPhaseTimeBudget(long phaseTimeBudget) {
+		this.phaseTimeBudget = phaseTimeBudget;
+	}
+
+	/**
+	 * Gets the live heap the same phases may reach. A callgraph or constant
+	 * propagation which would start with more than half of it in use is
+	 * replaced by a cheaper one beforehand.
+	 * 
+	 * @return The budget in bytes, or 0 for no limit
+	 */
+	public long getPhaseHeapBudget() {
+		return phaseHeapBudget;
+	}
+
+	public void setPhaseHeapBudget(long phaseHeapBudget) {
+		this.phaseHeapBudget = phaseHeapBudget;
+	}
+
+	/**
+	 * Gets the number of application methods up to which the callgraph is
+	 * built with the configured algorithm. Larger applications get a CHA
+	 * callgraph, which is decided before the construction starts.
+	 * 
+	 * @return The number of methods, or 0 for no limit
+	 */
+	public int getCallgraphMethodLimit() {
+		return callgraphMethodLimit;
+	}
+
+	public void setCallgraphMethodLimit(int callgraphMethodLimit) {
+		this.callgraphMethodLimit = callgraphMethodLimit;
+	}
+
+	/**
+	 * Gets the number of callgraph edges up to which the inter-procedural
+	 * constant propagation is run. It is skipped on larger callgraphs.
+	 * 
+	 * @return The number of edges, or 0 for no limit
+	 */
+	public int getConstantPropagationEdgeLimit() {
+		return constantPropagationEdgeLimit;
+	}
+
+	public void setConstantPropagationEdgeLimit(int constantPropagationEdgeLimit) {
+		this.constantPropagationEdgeLimit = constantPropagationEdgeLimit;
+	}
+
+	/**
+	 * Describes the settings which may change the misusages found, so that
+	 * results obtained with different settings are told apart. Settings
+	 * like the number of threads, which do not change the result, are left
+	 * out.
+	 * 
+	 * @return The description
+	 */
+	public String getResultSettings() {
+		return "callgraph=" + this.callgraphAlgorithm.name()
+				+ ",constantPropagation=" + this.constantPropagation
+				+ ",compactDeadCode=" + this.compactDeadCode
+				+ ",demandDriven=" + this.demandDriven
+				+ ",incrementalCallbacks=" + this.incrementalCallbacks
+				+ ",sharedScene=" + this.sharedScene
+				+ ",prefilter=" + this.prefilter
+				+ ",incremental=" + (this.incrementalDirectory != null);
+	}
+
+	/**
+	 * Creates the budget of a single phase
+	 * 
+	 * @return The budget, which may be unlimited
+	 */
+	public Budget createPhaseBudget() {
+		return new Budget(this.phaseTimeBudget, this.phaseHeapBudget);
+	}
+
+	/**
+	 * Gets the directory the snapshots of the platform jars are kept in.
+	 * Platform classes are then loaded from a snapshot instead of parsing
+	 * the platform jar in every run.
+	 * 
+	 * @return The directory, or null to always parse the platform jar
+	 */
+	public File getPlatformCacheDirectory() {
+		return platformCacheDirectory;
+	}
+
+	public void setPlatformCacheDirectory(File platformCacheDirectory) {
+		this.platformCacheDirectory = platformCacheDirectory;
+	}
+
+	/**
+	 * Gets the directory the state of the last analyzed version of every
+	 * app is kept in. The guard verdicts of methods which are not affected
+	 * by the changes of a new version are then reused.
+	 * 
+	 * @return The directory, or null to always analyze from scratch
+	 */
+	public File getIncrementalDirectory() {
+		return incrementalDirectory;
+	}
+
+	public void setIncrementalDirectory(File incrementalDirectory) {
+		this.incrementalDirectory = incrementalDirectory;
+	}
+
+	/**
+	 * Gets the directory the metrics of every analyzed APK are written to
+	 * 
+	 * @return The directory, or null if the metrics are not written
+	 */
+	public File getMetricsDirectory() {
+		return metricsDirectory;
+	}
+
+	public void setMetricsDirectory(File metricsDirectory) {
+		this.metricsDirectory = metricsDirectory;
+	}
+
+	public Metrics.Format getMetricsFormat() {
+		return metricsFormat;
+	}
+
+	public void setMetricsFormat(Metrics.Format metricsFormat) {
+		this.metricsFormat = metricsFormat;
+	}
+}
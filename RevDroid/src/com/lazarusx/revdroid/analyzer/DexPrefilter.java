@@ -0,0 +1,224 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks whether the dex files of an APK refer to any of the methods
+ * concerned, without loading the APK into Soot. Only the method reference
+ * tables of the dex files are read.
+ *
+ * A reference matches if its name, parameter types and return type match a
+ * method concerned. Its class is ignored, because a call may name any
+ * subclass of the class declaring the method, so the filter never rejects
+ * an APK the full analysis would find a sensitive call in.
+ */
+public class DexPrefilter {
+	// Offsets into the header of a dex file
+	private static final int STRING_IDS_SIZE = 56;
+	private static final int STRING_IDS_OFF = 60;
+	private static final int TYPE_IDS_OFF = 68;
+	private static final int PROTO_IDS_OFF = 76;
+	private static final int METHOD_IDS_SIZE = 88;
+	private static final int METHOD_IDS_OFF = 92;
+	private static final int HEADER_SIZE = 112;
+
+	// States of the names of method references
+	private static final byte NAME_UNKNOWN = 0;
+	private static final byte NAME_CONCERNED = 1;
+	private static final byte NAME_NOT_CONCERNED = 2;
+
+	// Method names mapped to the descriptors of their prototypes, e.g.,
+	// getDeviceId -> ()Ljava/lang/String;
+	private final Map<String, Set<String>> prototypes = new HashMap<String, Set<String>>();
+
+	public DexPrefilter(Collection<AndroidMethod> methodsConcerned) {
+		for (AndroidMethod method : methodsConcerned) {
+			Set<String> descriptors = this.prototypes.get(method
+					.getMethodName());
+			if (descriptors == null) {
+				descriptors = new HashSet<String>();
+				this.prototypes.put(method.getMethodName(), descriptors);
+			}
+
+			StringBuilder sb = new StringBuilder("(");
+			for (String parameter : method.getParameters())
+				sb.append(toDescriptor(parameter));
+			sb.append(')').append(toDescriptor(method.getReturnType()));
+			descriptors.add(sb.toString());
+		}
+	}
+
+	/**
+	 * Checks whether any dex file of the given APK refers to a method
+	 * concerned
+	 *
+	 * @param apkPath
+	 *            The APK to check
+	 * @return True if the APK may call a method concerned
+	 * @throws IOException
+	 *             Thrown if the APK cannot be read or a dex file is malformed
+	 */
+	public boolean mayCallMethodsConcerned(String apkPath) throws IOException {
+		ApkFile apk = new ApkFile(apkPath);
+		try {
+			return mayCallMethodsConcerned(apk);
+		} finally {
+			apk.close();
+		}
+	}
+
+	/**
+	 * Checks whether any dex file of an already opened APK refers to a
+	 * method concerned
+	 *
+	 * @param apk
+	 *            The APK to check
+	 * @return True if the APK may call a method concerned
+	 * @throws IOException
+	 *             Thrown if the APK cannot be read or a dex file is malformed
+	 */
+	public boolean mayCallMethodsConcerned(ApkFile apk) throws IOException {
+		if (this.prototypes.isEmpty())
+			return false;
+
+		// Every dex file is inflated on its own and can be collected before
+		// the next one is, so a multidex APK is never on the heap as a whole
+		for (ApkFile.Entry entry : apk.getEntries()) {
+			if (!entry.getName().matches("classes\\d*\\.dex"))
+				continue;
+			if (refersToMethodsConcerned(apk.getBuffer(entry)))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean refersToMethodsConcerned(ByteBuffer buffer)
+			throws IOException {
+		if (buffer.limit() < HEADER_SIZE || buffer.get(0) != 'd'
+				|| buffer.get(1) != 'e' || buffer.get(2) != 'x')
+			throw new IOException("Not a dex file");
+
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		int stringIdsSize = buffer.getInt(STRING_IDS_SIZE);
+		int stringIdsOff = buffer.getInt(STRING_IDS_OFF);
+		int typeIdsOff = buffer.getInt(TYPE_IDS_OFF);
+		int protoIdsOff = buffer.getInt(PROTO_IDS_OFF);
+		int methodIdsSize = buffer.getInt(METHOD_IDS_SIZE);
+		int methodIdsOff = buffer.getInt(METHOD_IDS_OFF);
+
+		try {
+			// Names are shared by many references, so each is decoded once
+			byte[] names = new byte[stringIdsSize];
+			for (int i = 0; i < methodIdsSize; i++) {
+				int item = methodIdsOff + i * 8;
+				int protoIdx = buffer.getShort(item + 2) & 0xffff;
+				int nameIdx = buffer.getInt(item + 4);
+
+				if (names[nameIdx] == NAME_UNKNOWN) {
+					String name = readString(buffer, stringIdsOff, nameIdx);
+					names[nameIdx] = this.prototypes.containsKey(name)
+							? NAME_CONCERNED : NAME_NOT_CONCERNED;
+				}
+				if (names[nameIdx] != NAME_CONCERNED)
+					continue;
+
+				String name = readString(buffer, stringIdsOff, nameIdx);
+				String prototype = readPrototype(buffer, stringIdsOff,
+						typeIdsOff, protoIdsOff, protoIdx);
+				if (this.prototypes.get(name).contains(prototype))
+					return true;
+			}
+		} catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+			throw new IOException("Malformed dex file", e);
+		}
+		return false;
+	}
+
+	private static String readPrototype(ByteBuffer buffer, int stringIdsOff,
+			int typeIdsOff, int protoIdsOff, int protoIdx) {
+		int item = protoIdsOff + protoIdx * 12;
+		int returnTypeIdx = buffer.getInt(item + 4);
+		int parametersOff = buffer.getInt(item + 8);
+
+		StringBuilder sb = new StringBuilder("(");
+		if (parametersOff != 0) {
+			int size = buffer.getInt(parametersOff);
+			for (int i = 0; i < size; i++)
+				sb.append(readType(buffer, stringIdsOff, typeIdsOff,
+						buffer.getShort(parametersOff + 4 + i * 2) & 0xffff));
+		}
+		sb.append(')').append(
+				readType(buffer, stringIdsOff, typeIdsOff, returnTypeIdx));
+		return sb.toString();
+	}
+
+	private static String readType(ByteBuffer buffer, int stringIdsOff,
+			int typeIdsOff, int typeIdx) {
+		return readString(buffer, stringIdsOff,
+				buffer.getInt(typeIdsOff + typeIdx * 4));
+	}
+
+	/**
+	 * Reads a string of the string table. Strings are stored in modified
+	 * UTF-8, which only differs from UTF-8 for characters that cannot occur
+	 * in the names of methods and types concerned.
+	 */
+	private static String readString(ByteBuffer buffer, int stringIdsOff,
+			int stringIdx) {
+		int position = buffer.getInt(stringIdsOff + stringIdx * 4);
+
+		// Skip the ULEB128 length in UTF-16 code units
+		while ((buffer.get(position++) & 0x80) != 0)
+			;
+
+		int end = position;
+		while (buffer.get(end) != 0)
+			end++;
+		byte[] bytes = new byte[end - position];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(position + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Converts a Java type name as used by PScout, e.g.,
+	 * java.lang.String[], to a dex type descriptor
+	 */
+	static String toDescriptor(String type) {
+		StringBuilder sb = new StringBuilder();
+		while (type.endsWith("[]")) {
+			sb.append('[');
+			type = type.substring(0, type.length() - 2);
+		}
+
+		if (type.equals("void"))
+			sb.append('V');
+		else if (type.equals("boolean"))
+			sb.append('Z');
+		else if (type.equals("byte"))
+			sb.append('B');
+		else if (type.equals("short"))
+			sb.append('S');
+		else if (type.equals("char"))
+			sb.append('C');
+		else if (type.equals("int"))
+			sb.append('I');
+		else if (type.equals("long"))
+			sb.append('J');
+		else if (type.equals("float"))
+			sb.append('F');
+		else if (type.equals("double"))
+			sb.append('D');
+		else
+			sb.append('L').append(type.replace('.', '/')).append(';');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,72 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import soot.SootClass;
+import soot.SootMethod;
+
+/**
+ * Memoizes which methods the classes of the Android framework declare, so
+ * that the callbacks of user-defined views are found without collecting
+ * the methods of all framework superclasses again for every control of
+ * every layout.
+ *
+ * Subsignatures are kept as the numbers Soot interns them with. The index
+ * is only valid as long as the scene it has been built on.
+ */
+public class FrameworkMethodIndex {
+	private static final BitSet NONE = new BitSet();
+
+	// Subsignatures declared by a class or its superclasses in the framework
+	private final Map<SootClass, BitSet> subSignatures = new HashMap<SootClass, BitSet>();
+	private final Map<SootClass, List<SootMethod>> overridingMethods = new HashMap<SootClass, List<SootMethod>>();
+
+	/**
+	 * Gets the methods of a class which override a method of one of its
+	 * framework superclasses
+	 *
+	 * @param sc
+	 *            The class, usually a user-defined view
+	 * @return The overriding methods, constructors excluded
+	 */
+	public List<SootMethod> getOverridingMethods(SootClass sc) {
+		List<SootMethod> methods = this.overridingMethods.get(sc);
+		if (methods == null) {
+			BitSet inherited = sc.hasSuperclass() ? getSubSignatures(sc
+					.getSuperclass()) : NONE;
+			methods = new ArrayList<SootMethod>();
+			for (SootMethod sm : sc.getMethods())
+				if (!sm.isConstructor()
+						&& inherited.get(sm.getNumberedSubSignature()
+								.getNumber()))
+					methods.add(sm);
+			this.overridingMethods.put(sc, methods);
+		}
+		return methods;
+	}
+
+	private BitSet getSubSignatures(SootClass sc) {
+		BitSet result = this.subSignatures.get(sc);
+		if (result != null)
+			return result;
+
+		BitSet inherited = sc.hasSuperclass() ? getSubSignatures(sc
+				.getSuperclass()) : NONE;
+		if (sc.getName().startsWith("android.")) {
+			result = (BitSet) inherited.clone();
+			for (SootMethod sm : sc.getMethods())
+				if (!sm.isConstructor())
+					result.set(sm.getNumberedSubSignature().getNumber());
+		} else {
+			// Classes outside of the framework share the set of their
+			// superclass
+			result = inherited;
+		}
+		this.subSignatures.put(sc, result);
+		return result;
+	}
+}
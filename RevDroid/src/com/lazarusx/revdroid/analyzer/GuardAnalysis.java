@@ -0,0 +1,343 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.TrapManager;
+import soot.Unit;
+import soot.jimple.Stmt;
+
+/**
+ * Decides whether statements are guarded against a SecurityException,
+ * either locally by a trap or a proactive permission check, or because all
+ * paths leading to their method are guarded.
+ *
+ * Verdicts for methods are memoized for the whole analysis run, and may be
+ * seeded with the verdicts of an earlier version of the app. They are
+ * computed bottom-up over the strongly connected components of the
+ * "depends on caller" relation, so every method is decided at most once
+ * no matter how many sensitive call sites share it as a caller.
+ *
+ * Call sites may be checked from several threads. Local verdicts are the
+ * expensive part, so they are computed without locking and cached in a
+ * concurrent map before a search starts. The search itself only reads
+ * them, and computes the verdicts of methods one thread at a time. Final
+ * verdicts are read without locking.
+ */
+public class GuardAnalysis {
+	public enum Verdict {
+		// All paths to the method are guarded
+		GUARDED,
+		// At least one path to the method is not guarded
+		UNGUARDED,
+		// The verdict is being computed
+		IN_PROGRESS
+	}
+
+	private final CallerIndex callerIndex;
+	private final SootClass securityException;
+	private final Map<SootMethod, Verdict> verdicts = new ConcurrentHashMap<SootMethod, Verdict>();
+	private final Map<Unit, Boolean> localVerdicts = new ConcurrentHashMap<Unit, Boolean>();
+	private final ProactiveCheckIndex proactiveChecks = new ProactiveCheckIndex();
+
+	// State of the strongly connected component search
+	private final Map<SootMethod, Integer> indices = new HashMap<SootMethod, Integer>();
+	private final Map<SootMethod, Integer> lowlinks = new HashMap<SootMethod, Integer>();
+	private final Deque<SootMethod> componentStack = new ArrayDeque<SootMethod>();
+
+	public GuardAnalysis(CallerIndex callerIndex) {
+		this.callerIndex = callerIndex;
+		this.securityException = Scene.v().getSootClass(
+				"java.lang.SecurityException");
+	}
+
+	/**
+	 * Check whether a Stmt which belongs to a SootMethod handles permission
+	 * check correctly. Recursive caller chains which are not guarded
+	 * elsewhere are not guarded.
+	 *
+	 * @param stmt
+	 *            the Stmt which might lead to SecurityException
+	 * @param sm
+	 *            the SootMethod which stmt belongs to
+	 * @return True if the statement is guarded
+	 */
+	public boolean isGuarded(Stmt stmt, SootMethod sm) {
+		return isGuardedLocally(stmt, sm) || isGuarded(sm);
+	}
+
+	/**
+	 * Checks whether all paths leading to the given method are guarded
+	 *
+	 * @param sm
+	 *            The method to check
+	 * @return True if all callers of the method are guarded
+	 */
+	public boolean isGuarded(SootMethod sm) {
+		Verdict verdict = this.verdicts.get(sm);
+		if (verdict == null)
+			computeLocalVerdicts(sm);
+		if (verdict == null || verdict == Verdict.IN_PROGRESS) {
+			// Verdicts in progress belong to another thread, which finishes
+			// them before it lets go of the lock
+			synchronized (this) {
+				verdict = this.verdicts.get(sm);
+				if (verdict == null) {
+					computeVerdicts(sm);
+					verdict = this.verdicts.get(sm);
+				}
+			}
+		}
+		return verdict == Verdict.GUARDED;
+	}
+
+	/**
+	 * Follows unguarded callers from the given method to explain why it is
+	 * not guarded
+	 *
+	 * @param sm
+	 *            The method containing an unguarded statement
+	 * @return The signatures of the methods on one unguarded path to the
+	 *         method, starting with its caller. The path ends at a method
+	 *         without callers or where it would become recursive.
+	 */
+	public List<String> getUnguardedCallerChain(SootMethod sm) {
+		List<String> chain = new ArrayList<String>();
+		Set<SootMethod> visited = new HashSet<SootMethod>();
+		visited.add(sm);
+		SootMethod current = sm;
+		while (current != null) {
+			SootMethod next = null;
+			for (Unit u : this.callerIndex.getCallersOf(current)) {
+				if (!(u instanceof Stmt) || !((Stmt) u).containsInvokeExpr())
+					continue;
+				SootMethod caller = this.callerIndex.getMethodOf(u);
+				if (!visited.contains(caller)
+						&& !isGuardedLocally((Stmt) u, caller)
+						&& !isGuarded(caller)) {
+					next = caller;
+					break;
+				}
+			}
+			if (next != null) {
+				visited.add(next);
+				chain.add(next.getSignature());
+			}
+			current = next;
+		}
+		return chain;
+	}
+
+	/**
+	 * Sets the verdict of a method known from the analysis of an earlier
+	 * version of the app, so it is not computed again. Must be called before
+	 * any statement is checked.
+	 *
+	 * @param sm
+	 *            The method
+	 * @param verdict
+	 *            The verdict, either GUARDED or UNGUARDED
+	 */
+	public void seedVerdict(SootMethod sm, Verdict verdict) {
+		this.verdicts.put(sm, verdict);
+	}
+
+	public Verdict getVerdict(SootMethod sm) {
+		return this.verdicts.get(sm);
+	}
+
+	public int getVerdictCount() {
+		return this.verdicts.size();
+	}
+
+	/**
+	 * Checks whether the given statement is guarded by a trap or a
+	 * proactive permission check in its own method
+	 */
+	private boolean isGuardedLocally(Stmt stmt, SootMethod sm) {
+		Boolean guarded = this.localVerdicts.get(stmt);
+		if (guarded == null) {
+			// Super classes of `SecurityException` are included into analysis by Soot.
+			// See the source code of `TrapManager.isExceptionCaughtAt()`.
+			guarded = TrapManager.isExceptionCaughtAt(this.securityException,
+					stmt, sm.getActiveBody())
+					|| this.proactiveChecks.isDominatedByCheck(stmt,
+							sm.getActiveBody());
+			this.localVerdicts.put(stmt, guarded);
+		}
+		return guarded;
+	}
+
+	/**
+	 * Computes the local verdicts of all calls the search for the verdict of
+	 * the given method will look at, i.e., the calls of all callers it
+	 * transitively depends on. Runs without the lock, so several threads
+	 * can do this at the same time.
+	 */
+	private void computeLocalVerdicts(SootMethod root) {
+		Set<SootMethod> visited = new HashSet<SootMethod>();
+		Deque<SootMethod> worklist = new ArrayDeque<SootMethod>();
+		visited.add(root);
+		worklist.push(root);
+		while (!worklist.isEmpty()) {
+			SootMethod sm = worklist.pop();
+			for (Unit u : this.callerIndex.getCallersOf(sm)) {
+				if (!(u instanceof Stmt) || !((Stmt) u).containsInvokeExpr())
+					continue;
+				SootMethod caller = this.callerIndex.getMethodOf(u);
+				// Methods with a verdict, even one in progress, have been
+				// looked at before
+				if (!isGuardedLocally((Stmt) u, caller)
+						&& this.verdicts.get(caller) == null
+						&& visited.add(caller))
+					worklist.push(caller);
+			}
+		}
+	}
+
+	/**
+	 * A method on the search stack together with the callers whose verdicts
+	 * it depends on
+	 */
+	private static class Frame {
+		final SootMethod method;
+		final List<SootMethod> dependencies;
+		final boolean unguarded;
+		int next = 0;
+
+		Frame(SootMethod method, List<SootMethod> dependencies,
+				boolean unguarded) {
+			this.method = method;
+			this.dependencies = dependencies;
+			this.unguarded = unguarded;
+		}
+	}
+
+	/**
+	 * Computes the verdicts of the given method and all methods it depends
+	 * on using an iterative version of Tarjan's algorithm. Components are
+	 * completed callers first, so the verdicts of all callers outside of a
+	 * component are final when the component is decided.
+	 *
+	 * If the search fails, the methods it has not decided yet are left
+	 * without a verdict, so a later check computes them again.
+	 */
+	private void computeVerdicts(SootMethod root) {
+		try {
+			Deque<Frame> frames = new ArrayDeque<Frame>();
+			frames.push(enter(root));
+
+			while (!frames.isEmpty()) {
+				Frame frame = frames.peek();
+				SootMethod sm = frame.method;
+
+				if (frame.next < frame.dependencies.size()) {
+					SootMethod caller = frame.dependencies.get(frame.next++);
+					Verdict verdict = this.verdicts.get(caller);
+					if (verdict == null) {
+						frames.push(enter(caller));
+					} else if (verdict == Verdict.IN_PROGRESS) {
+						// The caller is on the component stack
+						this.lowlinks.put(sm, Math.min(this.lowlinks.get(sm),
+								this.indices.get(caller)));
+					}
+					continue;
+				}
+
+				frames.pop();
+				if (this.lowlinks.get(sm).equals(this.indices.get(sm))) {
+					decide(frame);
+				}
+				if (!frames.isEmpty()) {
+					SootMethod parent = frames.peek().method;
+					this.lowlinks.put(parent, Math.min(
+							this.lowlinks.get(parent), this.lowlinks.get(sm)));
+				}
+			}
+		} finally {
+			for (SootMethod sm : this.componentStack)
+				this.verdicts.remove(sm);
+			this.componentStack.clear();
+			this.indices.clear();
+			this.lowlinks.clear();
+		}
+	}
+
+	private Frame enter(SootMethod sm) {
+		int index = this.indices.size();
+		this.indices.put(sm, index);
+		this.lowlinks.put(sm, index);
+		this.componentStack.push(sm);
+		this.verdicts.put(sm, Verdict.IN_PROGRESS);
+
+		List<Unit> callers = this.callerIndex.getCallersOf(sm);
+		if (callers.isEmpty()) {
+			Helper.printDebugMessage("No callers found for " + sm.getSignature());
+			return new Frame(sm, new ArrayList<SootMethod>(0), true);
+		}
+
+		// Callers which are guarded locally do not depend on anything
+		List<SootMethod> dependencies = new ArrayList<SootMethod>();
+		for (Unit u : callers) {
+			if (!(u instanceof Stmt)) {
+				Helper.printDebugMessage("Caller unit is not an instance of Stmt");
+				return new Frame(sm, new ArrayList<SootMethod>(0), true);
+			}
+
+			Stmt callerStmt = (Stmt) u;
+			if (!callerStmt.containsInvokeExpr()) {
+				Helper.printDebugMessage("Caller statement does not contain invoke expressions");
+				return new Frame(sm, new ArrayList<SootMethod>(0), true);
+			}
+
+			SootMethod callerMethod = this.callerIndex.getMethodOf(u);
+			if (!isGuardedLocally(callerStmt, callerMethod))
+				dependencies.add(callerMethod);
+		}
+		return new Frame(sm, dependencies, false);
+	}
+
+	/**
+	 * Decides the component rooted at the given frame. Every method of a
+	 * component with more than one method depends on another method of the
+	 * component through an unguarded call, i.e., on a recursive chain which
+	 * is not guarded anywhere, so the whole component is unguarded.
+	 */
+	private void decide(Frame root) {
+		List<SootMethod> component = new ArrayList<SootMethod>();
+		SootMethod member;
+		do {
+			member = this.componentStack.pop();
+			component.add(member);
+		} while (member != root.method);
+
+		Verdict verdict = Verdict.GUARDED;
+		if (component.size() > 1 || root.unguarded) {
+			verdict = Verdict.UNGUARDED;
+		} else {
+			for (SootMethod caller : root.dependencies) {
+				// A method calling itself is recursive as well
+				if (caller == root.method
+						|| this.verdicts.get(caller) != Verdict.GUARDED) {
+					verdict = Verdict.UNGUARDED;
+					break;
+				}
+			}
+		}
+
+		if (component.size() > 1)
+			Helper.printDebugMessage("Recursion found. Not found trap in caller");
+		for (SootMethod sm : component)
+			this.verdicts.put(sm, verdict);
+	}
+}
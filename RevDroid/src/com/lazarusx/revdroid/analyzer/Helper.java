@@ -4,7 +4,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
 
+import soot.Body;
 import soot.G;
+import soot.toolkits.exceptions.ThrowableSet;
+import soot.toolkits.graph.ExceptionalUnitGraph;
 
 public class Helper {
 	public static void printDebugMessage(String message) {
@@ -13,6 +16,62 @@ public class Helper {
 		}
 	}
 	
+	/**
+	 * Quotes a string as a JSON string literal
+	 */
+	public static String quoteJson(String s) {
+		if (s == null)
+			return "null";
+
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+	
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			sb.append(String.format("%02x", b & 0xff));
+		return sb.toString();
+	}
+	
+	/**
+	 * Builds the exceptional unit graph of a body. The throwable sets of
+	 * Soot memoize their unions in unsynchronized maps, so only one graph is
+	 * built at a time.
+	 */
+	public static ExceptionalUnitGraph newExceptionalUnitGraph(Body body) {
+		synchronized (ThrowableSet.Manager.v()) {
+			return new ExceptionalUnitGraph(body);
+		}
+	}
+	
 	public static void setOutput() {
 		if (!Main.DEBUG) {
 			try {
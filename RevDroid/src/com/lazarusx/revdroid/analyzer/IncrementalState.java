@@ -0,0 +1,359 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import soot.Scene;
+import soot.SootMethod;
+import soot.Unit;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+
+/**
+ * What the analysis of one version of an app leaves behind for the
+ * analysis of its next version: a fingerprint of every class with
+ * reachable methods, and for every reachable method a digest of its callers
+ * and its guard verdict, if one was computed.
+ *
+ * A method is changed if the fingerprint of its class or the digest of its
+ * callers differs from the stored one. Verdicts only flow from callers to
+ * callees, so a stored verdict still holds unless the method can be reached
+ * from a changed method in the callgraph. Fingerprints are taken of the
+ * bodies after dead code elimination, which are the bodies the verdicts
+ * are computed from.
+ */
+public class IncrementalState {
+	private static final String HEADER = "revdroid-incremental 1";
+	private static final String NO_VERDICT = "-";
+
+	private final String context;
+	// Class names mapped to their fingerprints
+	private final Map<String, String> fingerprints;
+	// Method signatures mapped to the digests of their callers
+	private final Map<String, String> callerDigests;
+	private final Map<String, GuardAnalysis.Verdict> verdicts;
+
+	private IncrementalState(String context, Map<String, String> fingerprints,
+			Map<String, String> callerDigests,
+			Map<String, GuardAnalysis.Verdict> verdicts) {
+		this.context = context;
+		this.fingerprints = fingerprints;
+		this.callerDigests = callerDigests;
+		this.verdicts = verdicts;
+	}
+
+	/**
+	 * Computes the context a state is valid in. A state is only reused with
+	 * the same platform jar, PScout mapping, callgraph algorithm and
+	 * analyzer version.
+	 *
+	 * @param app
+	 *            The application being analyzed
+	 * @return The context
+	 * @throws IOException
+	 *             Thrown if the PScout mapping cannot be read
+	 */
+	public static String computeContext(Application app) throws IOException {
+		return app.getAndroidJarPath() + "|"
+				+ app.getPScoutParser().getDigest() + "|"
+				+ app.getCallgraphAlgorithm().name() + "|"
+				+ ResultCache.ANALYZER_VERSION;
+	}
+
+	/**
+	 * Gets the file the state of an application is kept in. All versions of
+	 * an app share the same package name and therefore the same file.
+	 *
+	 * @param directory
+	 *            The directory the states are kept in
+	 * @param app
+	 *            The application
+	 * @return The state file
+	 */
+	public static File getStateFile(File directory, Application app) {
+		return new File(directory, app.getPackageName() + ".state");
+	}
+
+	/**
+	 * Computes the fingerprints of the classes declaring the given methods.
+	 * The fingerprint of a class covers the signatures and the current
+	 * bodies of those of its methods which are given.
+	 *
+	 * @param methods
+	 *            The reachable methods
+	 * @return The class names mapped to their fingerprints
+	 */
+	public static Map<String, String> computeFingerprints(
+			Collection<SootMethod> methods) {
+		Map<String, List<SootMethod>> methodsByClass = new HashMap<String, List<SootMethod>>();
+		for (SootMethod sm : methods) {
+			String className = sm.getDeclaringClass().getName();
+			List<SootMethod> classMethods = methodsByClass.get(className);
+			if (classMethods == null) {
+				classMethods = new ArrayList<SootMethod>();
+				methodsByClass.put(className, classMethods);
+			}
+			classMethods.add(sm);
+		}
+
+		Map<String, String> fingerprints = new HashMap<String, String>(
+				methodsByClass.size() * 2);
+		for (Map.Entry<String, List<SootMethod>> entry : methodsByClass
+				.entrySet()) {
+			List<SootMethod> classMethods = entry.getValue();
+			Collections.sort(classMethods, new Comparator<SootMethod>() {
+				@Override
+				public int compare(SootMethod m1, SootMethod m2) {
+					return m1.getSignature().compareTo(m2.getSignature());
+				}
+			});
+
+			MessageDigest digest = ResultCache.newDigest();
+			for (SootMethod sm : classMethods) {
+				update(digest, sm.getSignature());
+				// Bodies which were never loaded did not take part in the
+				// analysis
+				update(digest, sm.hasActiveBody() ? sm.getActiveBody()
+						.toString() : "");
+			}
+			fingerprints.put(entry.getKey(), Helper.toHex(digest.digest()));
+		}
+		return fingerprints;
+	}
+
+	/**
+	 * Computes a digest of the methods calling the given method, once per
+	 * call site
+	 */
+	private static String computeCallerDigest(SootMethod sm,
+			CallerIndex callerIndex) {
+		List<String> callers = new ArrayList<String>();
+		for (Unit u : callerIndex.getCallersOf(sm))
+			callers.add(callerIndex.getMethodOf(u).getSignature());
+		Collections.sort(callers);
+
+		MessageDigest digest = ResultCache.newDigest();
+		for (String caller : callers)
+			update(digest, caller);
+		return Helper.toHex(digest.digest());
+	}
+
+	private static void update(MessageDigest digest, String s) {
+		digest.update(s.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	/**
+	 * Captures the state of a finished analysis
+	 *
+	 * @param context
+	 *            The context computed by {@link #computeContext}
+	 * @param fingerprints
+	 *            The fingerprints computed by {@link #computeFingerprints}
+	 * @param methods
+	 *            The reachable methods
+	 * @param guardAnalysis
+	 *            The guard analysis all sensitive call sites were checked
+	 *            with
+	 * @param callerIndex
+	 *            The caller index of the guard analysis
+	 * @return The state
+	 */
+	public static IncrementalState capture(String context,
+			Map<String, String> fingerprints, Collection<SootMethod> methods,
+			GuardAnalysis guardAnalysis, CallerIndex callerIndex) {
+		Map<String, String> callerDigests = new HashMap<String, String>(
+				methods.size() * 2);
+		Map<String, GuardAnalysis.Verdict> verdicts = new HashMap<String, GuardAnalysis.Verdict>();
+		for (SootMethod sm : methods) {
+			callerDigests.put(sm.getSignature(),
+					computeCallerDigest(sm, callerIndex));
+			GuardAnalysis.Verdict verdict = guardAnalysis.getVerdict(sm);
+			if (verdict == GuardAnalysis.Verdict.GUARDED
+					|| verdict == GuardAnalysis.Verdict.UNGUARDED)
+				verdicts.put(sm.getSignature(), verdict);
+		}
+		return new IncrementalState(context, fingerprints, callerDigests,
+				verdicts);
+	}
+
+	/**
+	 * Seeds a guard analysis with the stored verdicts which still hold, so
+	 * only the call sites reachable from changed code are decided again.
+	 * Must be called before any call site is checked.
+	 *
+	 * @param guardAnalysis
+	 *            The guard analysis of the current version
+	 * @param fingerprints
+	 *            The fingerprints of the current version
+	 * @param methods
+	 *            The reachable methods of the current version
+	 * @param callerIndex
+	 *            The caller index of the guard analysis
+	 * @return The number of verdicts reused
+	 */
+	public int seed(GuardAnalysis guardAnalysis,
+			Map<String, String> fingerprints, Collection<SootMethod> methods,
+			CallerIndex callerIndex) {
+		Set<SootMethod> affected = new HashSet<SootMethod>();
+		Deque<SootMethod> worklist = new ArrayDeque<SootMethod>();
+		for (SootMethod sm : methods) {
+			if (isChanged(sm, fingerprints, callerIndex)) {
+				affected.add(sm);
+				worklist.push(sm);
+			}
+		}
+
+		CallGraph cg = Scene.v().getCallGraph();
+		while (!worklist.isEmpty()) {
+			SootMethod sm = worklist.pop();
+			for (Iterator<Edge> it = cg.edgesOutOf(sm); it.hasNext(); ) {
+				SootMethod callee = it.next().tgt();
+				if (callee != null && affected.add(callee))
+					worklist.push(callee);
+			}
+		}
+
+		int reused = 0;
+		for (SootMethod sm : methods) {
+			GuardAnalysis.Verdict verdict = this.verdicts.get(sm
+					.getSignature());
+			if (verdict != null && !affected.contains(sm)) {
+				guardAnalysis.seedVerdict(sm, verdict);
+				reused++;
+			}
+		}
+		Helper.printDebugMessage(affected.size() + " of " + methods.size()
+				+ " methods affected by changes, " + reused
+				+ " verdicts reused");
+		return reused;
+	}
+
+	private boolean isChanged(SootMethod sm, Map<String, String> fingerprints,
+			CallerIndex callerIndex) {
+		String className = sm.getDeclaringClass().getName();
+		String fingerprint = this.fingerprints.get(className);
+		if (fingerprint == null
+				|| !fingerprint.equals(fingerprints.get(className)))
+			return true;
+		String callerDigest = this.callerDigests.get(sm.getSignature());
+		return callerDigest == null
+				|| !callerDigest.equals(computeCallerDigest(sm, callerIndex));
+	}
+
+	/**
+	 * Loads the state stored for an application
+	 *
+	 * @param file
+	 *            The state file
+	 * @param context
+	 *            The context computed by {@link #computeContext}
+	 * @return The state, or null if there is no state for the given context
+	 * @throws IOException
+	 *             Thrown if the state cannot be read or is malformed
+	 */
+	public static IncrementalState load(File file, String context)
+			throws IOException {
+		if (!file.exists())
+			return null;
+
+		Map<String, String> fingerprints = new HashMap<String, String>();
+		Map<String, String> callerDigests = new HashMap<String, String>();
+		Map<String, GuardAnalysis.Verdict> verdicts = new HashMap<String, GuardAnalysis.Verdict>();
+		BufferedReader reader = Files.newBufferedReader(file.toPath(),
+				StandardCharsets.UTF_8);
+		try {
+			if (!HEADER.equals(reader.readLine())
+					|| !context.equals(reader.readLine()))
+				return null;
+
+			// Lines are either "C <fingerprint> <class>" or
+			// "M <caller digest> <verdict> <signature>"
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ", line.startsWith("M ") ? 4 : 3);
+				if (fields.length == 3 && fields[0].equals("C")) {
+					fingerprints.put(fields[2], fields[1]);
+				} else if (fields.length == 4 && fields[0].equals("M")) {
+					callerDigests.put(fields[3], fields[1]);
+					if (!fields[2].equals(NO_VERDICT))
+						verdicts.put(fields[3],
+								GuardAnalysis.Verdict.valueOf(fields[2]));
+				} else {
+					throw new IOException("Malformed line in " + file + ": "
+							+ line);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Malformed verdict in " + file, e);
+		} finally {
+			reader.close();
+		}
+		return new IncrementalState(context, fingerprints, callerDigests,
+				verdicts);
+	}
+
+	/**
+	 * Stores the state, replacing the state of the previous version
+	 *
+	 * @param file
+	 *            The state file
+	 * @throws IOException
+	 *             Thrown if the state cannot be written
+	 */
+	public void save(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+
+		// Batches may analyze several versions of an app at once, so states
+		// are replaced atomically
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+		BufferedWriter writer = Files.newBufferedWriter(tmpFile.toPath(),
+				StandardCharsets.UTF_8);
+		try {
+			writer.write(HEADER);
+			writer.newLine();
+			writer.write(this.context);
+			writer.newLine();
+			for (Map.Entry<String, String> entry : this.fingerprints
+					.entrySet()) {
+				writer.write("C " + entry.getValue() + " " + entry.getKey());
+				writer.newLine();
+			}
+			for (Map.Entry<String, String> entry : this.callerDigests
+					.entrySet()) {
+				GuardAnalysis.Verdict verdict = this.verdicts.get(entry
+						.getKey());
+				writer.write("M " + entry.getValue() + " "
+						+ (verdict == null ? NO_VERDICT : verdict.name())
+						+ " " + entry.getKey());
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+
+		if (!tmpFile.renameTo(file)) {
+			tmpFile.delete();
+			throw new IOException("Could not create " + file);
+		}
+	}
+}
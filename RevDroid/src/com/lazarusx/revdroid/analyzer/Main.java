@@ -1,32 +1,246 @@
 package com.lazarusx.revdroid.analyzer;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Locale;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 public class Main {
-	final static String ANDROID_PLATFORM_PATH = "/home/ray/android-sdk/platforms";
-	final static String PSCOUT_RESULT_PATH = "/home/ray/pscout/android_class/allmappings";
-	
+	final static String ANDROID_PLATFORM_PATH = System.getProperty(
+			"revdroid.platforms", "/home/ray/android-sdk/platforms");
+	final static String PSCOUT_RESULT_PATH = System.getProperty(
+			"revdroid.pscout", "/home/ray/pscout/android_class/allmappings");
+
 	final static boolean DEBUG = false;
 
-	public static void main(String[] args) {		
+	/**
+	 * Usage:
+	 * <pre>
+	 * Main app.apk
+	 * Main --batch (directory | glob | manifest) [output]
+	 * Main --compare app.apk
+	 * </pre>
+	 * The Android platforms and the PScout result can be set with the system
+	 * properties revdroid.platforms and revdroid.pscout.
+	 * 
+	 * Batches are analyzed in parallel worker processes if revdroid.workers
+	 * is set. Each worker is limited to revdroid.timeout milliseconds per APK
+	 * and a heap of revdroid.workerHeap, and is replaced after
+	 * revdroid.appsPerWorker APKs.
+	 * 
+	 * Results are cached in revdroid.cacheDir, if set, with a maximum size of
+	 * revdroid.cacheSize megabytes.
+	 * 
+	 * The time and memory used by every phase are written per APK to
+	 * revdroid.metricsDir, if set, as JSON or, if revdroid.metricsFormat is
+	 * prometheus, in the Prometheus text format.
+	 * 
+	 * The misusage detection runs on revdroid.misusageThreads threads, 1 by
+	 * default. With revdroid.compactDeadCode, dead assignments are
+	 * eliminated without allocating per statement.
+	 * 
+	 * APKs whose dex files do not refer to any permission-protected method
+	 * are skipped before Soot is started, unless revdroid.prefilter is
+	 * false. With revdroid.demandDriven, APKs whose classes, once loaded
+	 * into Soot, do not call any permission-protected method are not
+	 * analyzed further, before their callgraph is built.
+	 * 
+	 * A single APK's misusages are printed as they are found, one JSON record
+	 * per line.
+	 * 
+	 * With revdroid.incrementalCallbacks, the callback calculation keeps the
+	 * classes loaded in its first iteration instead of setting up Soot again
+	 * in every iteration. With revdroid.sharedScene, the analyzer works on
+	 * the scene of the callback calculation instead of loading the classes
+	 * again. Single APKs and batches are analyzed the same way.
+	 * 
+	 * The callgraph is built with the algorithm revdroid.callgraph, one of
+	 * CHA, RTA, VTA and SPARK (the default). --compare analyzes an APK with
+	 * every algorithm and prints the time, peak heap, callgraph edges and
+	 * misusages of each compared to SPARK.
+	 * 
+	 * The callback calculation and the callgraph construction may take
+	 * revdroid.phaseTimeout milliseconds and revdroid.phaseHeap megabytes of
+	 * live heap each, if set. Neither phase can be interrupted, so the
+	 * cheaper settings are chosen before a phase starts: an APK with more
+	 * than revdroid.callgraphMethodLimit methods, or too little heap left,
+	 * gets a CHA callgraph, and the inter-procedural constant propagation
+	 * is skipped on more than revdroid.ipcvpEdgeLimit callgraph edges, too
+	 * little heap, or after a callgraph over its time budget. The callback
+	 * iterations are cut short between iterations. The result is then
+	 * reported as partial. The hard limit is revdroid.timeout of the
+	 * workers.
+	 * 
+	 * With revdroid.platformCacheDir, the classes of the platform jar are
+	 * loaded from a snapshot kept in that directory, which is built the
+	 * first time a platform is used.
+	 * 
+	 * With revdroid.incrementalDir, the class fingerprints and guard verdicts
+	 * of every app are kept in that directory, and the next version of the
+	 * app only re-checks the call sites reachable from changed code.
+	 */
+	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("--batch")) {
+			System.exit(runBatch(args));
+		}
+		if (args.length > 0 && args[0].equals("--compare")) {
+			System.exit(runComparison(args));
+		}
+
 		String apkPath = args[0];
 		Application app = null;
 		try {
-			app = new Application(ANDROID_PLATFORM_PATH, apkPath, PSCOUT_RESULT_PATH);
+			app = new Application(ANDROID_PLATFORM_PATH, apkPath,
+					PSCOUT_RESULT_PATH, createConfiguration());
 		} catch (IOException | XmlPullParserException e) {
 			e.printStackTrace();
 		}
-		
+
 		if (DEBUG) {
 			app.printEntryPoints();
 			app.printMethodsConcerned();
 		}
-		
+
 		if (app != null) {
 			Analyzer analyzer = new Analyzer(app);
+			analyzer.setMisusageWriter(new MisusageWriter(System.out, apkPath));
 			analyzer.analyze();
+
+			if (DEBUG) {
+				app.printMetrics();
+			}
+
+			File metricsDirectory = app.getConfiguration().getMetricsDirectory();
+			if (metricsDirectory != null) {
+				try {
+					app.getMetrics().write(metricsDirectory, apkPath,
+							app.getConfiguration().getMetricsFormat());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	static Configuration createConfiguration() {
+		Configuration config = new Configuration();
+		config.setPrefilter(!"false".equals(System
+				.getProperty("revdroid.prefilter")));
+		config.setDemandDriven(Boolean.getBoolean("revdroid.demandDriven"));
+		config.setIncrementalCallbacks(Boolean
+				.getBoolean("revdroid.incrementalCallbacks"));
+		config.setSharedScene(Boolean.getBoolean("revdroid.sharedScene"));
+		String callgraph = System.getProperty("revdroid.callgraph");
+		if (callgraph != null) {
+			config.setCallgraphAlgorithm(CallgraphAlgorithm.valueOf(callgraph
+					.toUpperCase(Locale.ROOT)));
+		}
+		config.setMisusageThreads(Integer.getInteger(
+				"revdroid.misusageThreads", 1));
+		config.setCompactDeadCode(Boolean.getBoolean("revdroid.compactDeadCode"));
+		config.setPhaseTimeBudget(Long.getLong("revdroid.phaseTimeout", 0));
+		config.setPhaseHeapBudget(Long.getLong("revdroid.phaseHeap", 0) * 1024 * 1024);
+		config.setCallgraphMethodLimit(Integer.getInteger(
+				"revdroid.callgraphMethodLimit", 0));
+		config.setConstantPropagationEdgeLimit(Integer.getInteger(
+				"revdroid.ipcvpEdgeLimit", 0));
+		String platformCacheDir = System.getProperty("revdroid.platformCacheDir");
+		if (platformCacheDir != null) {
+			config.setPlatformCacheDirectory(new File(platformCacheDir));
+		}
+		String incrementalDir = System.getProperty("revdroid.incrementalDir");
+		if (incrementalDir != null) {
+			config.setIncrementalDirectory(new File(incrementalDir));
+		}
+		String metricsDir = System.getProperty("revdroid.metricsDir");
+		if (metricsDir != null) {
+			config.setMetricsDirectory(new File(metricsDir));
+		}
+		if ("prometheus".equalsIgnoreCase(System
+				.getProperty("revdroid.metricsFormat"))) {
+			config.setMetricsFormat(Metrics.Format.PROMETHEUS);
+		}
+		return config;
+	}
+
+	static ResultCache createResultCache() throws IOException {
+		String cacheDir = System.getProperty("revdroid.cacheDir");
+		if (cacheDir == null) {
+			return null;
+		}
+		long cacheSize = Long.getLong("revdroid.cacheSize", 1024);
+		return new ResultCache(new File(cacheDir), cacheSize * 1024 * 1024);
+	}
+
+	static void printCacheStatistics(ResultCache cache) {
+		if (cache != null) {
+			System.err.println("Result cache: " + cache.getHits() + " hits, "
+					+ cache.getMisses() + " misses");
+		}
+	}
+
+	private static int runComparison(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: --compare app.apk");
+			return 2;
+		}
+
+		try {
+			CallgraphComparison comparison = new CallgraphComparison(
+					ANDROID_PLATFORM_PATH, PSCOUT_RESULT_PATH,
+					createConfiguration());
+			return comparison.run(args[1], System.out) == 0 ? 0 : 1;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 2;
+		}
+	}
+
+	private static int runBatch(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: --batch (directory | glob | manifest) [output]");
+			return 2;
+		}
+
+		PrintStream out = System.out;
+		try {
+			List<String> apkPaths = BatchRunner.collectApks(args[1]);
+			if (args.length > 2) {
+				out = new PrintStream(new File(args[2]));
+			}
+
+			int failures;
+			int workers = Integer.getInteger("revdroid.workers", 0);
+			if (workers > 0) {
+				WorkerPool pool = new WorkerPool(workers,
+						Long.getLong("revdroid.timeout", 0),
+						System.getProperty("revdroid.workerHeap"),
+						Integer.getInteger("revdroid.appsPerWorker", 0));
+				failures = pool.run(apkPaths, out);
+			} else {
+				Configuration config = createConfiguration();
+				BatchRunner runner = new BatchRunner(ANDROID_PLATFORM_PATH,
+						PSCOUT_RESULT_PATH, config);
+				runner.setResultCache(createResultCache());
+				failures = runner.run(apkPaths, out);
+				printCacheStatistics(runner.getResultCache());
+			}
+			System.err.println("Analyzed " + apkPaths.size() + " APKs, "
+					+ failures + " failed");
+			return failures == 0 ? 0 : 1;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 2;
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return 2;
+		} finally {
+			if (out != System.out) {
+				out.close();
+			}
 		}
 	}
 }
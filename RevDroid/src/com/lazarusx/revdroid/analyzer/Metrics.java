@@ -0,0 +1,346 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Resource usage of the phases of a run, in the order the phases were
+ * started, together with counts describing the size of the analyzed app.
+ *
+ * CPU time and allocated bytes are measured on the thread running the
+ * phase. The peak heap of a phase is the sum of the peak usages of all heap
+ * pools while the phase ran, which is an upper bound as the pools may peak
+ * at different times. Phases may be nested.
+ */
+public class Metrics {
+	public enum Format {
+		JSON, PROMETHEUS
+	}
+
+	public static class Phase {
+		private int runs = 0;
+		private long wallTime = 0;
+		private long cpuTime = 0;
+		private long allocatedBytes = 0;
+		private long peakHeap = 0;
+
+		// State of the current run
+		private long startWallTime;
+		private long startCpuTime;
+		private long startAllocatedBytes;
+		private long runPeakHeap;
+
+		public int getRuns() {
+			return runs;
+		}
+
+		/**
+		 * @return The wall time of all runs in nanoseconds
+		 */
+		public long getWallTime() {
+			return wallTime;
+		}
+
+		/**
+		 * @return The CPU time of all runs in nanoseconds, or -1 if the JVM
+		 *         cannot measure it
+		 */
+		public long getCpuTime() {
+			return cpuTime;
+		}
+
+		/**
+		 * @return The bytes allocated by all runs, or -1 if the JVM cannot
+		 *         measure them
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		/**
+		 * @return The highest peak heap of all runs in bytes
+		 */
+		public long getPeakHeap() {
+			return peakHeap;
+		}
+	}
+
+	private static final ThreadMXBean threadBean = ManagementFactory
+			.getThreadMXBean();
+	private static final List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+
+	static {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP && pool.isValid())
+				heapPools.add(pool);
+
+		if (threadBean.isThreadCpuTimeSupported()
+				&& !threadBean.isThreadCpuTimeEnabled())
+			threadBean.setThreadCpuTimeEnabled(true);
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+			if (bean.isThreadAllocatedMemorySupported()
+					&& !bean.isThreadAllocatedMemoryEnabled())
+				bean.setThreadAllocatedMemoryEnabled(true);
+		}
+	}
+
+	private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+	private final Map<String, Phase> runningPhases = new HashMap<String, Phase>();
+	private final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+
+	public void start(String phase) {
+		Phase p = this.phases.get(phase);
+		if (p == null) {
+			p = new Phase();
+			this.phases.put(phase, p);
+		}
+
+		// Resetting the peak usage of the pools loses the peaks of the
+		// enclosing phases, so they are sampled first
+		samplePeakHeap();
+		for (MemoryPoolMXBean pool : heapPools)
+			pool.resetPeakUsage();
+
+		p.runPeakHeap = 0;
+		p.startAllocatedBytes = getAllocatedBytes();
+		p.startCpuTime = getCpuTime();
+		p.startWallTime = System.nanoTime();
+		this.runningPhases.put(phase, p);
+	}
+
+	/**
+	 * Stops the given phase. Phases that are run several times accumulate
+	 * their times and allocations and keep their highest peak heap.
+	 *
+	 * @param phase
+	 *            The phase to stop
+	 * @return The wall time of this run of the phase in milliseconds
+	 */
+	public long stop(String phase) {
+		long wallTime = System.nanoTime();
+		long cpuTime = getCpuTime();
+		long allocatedBytes = getAllocatedBytes();
+
+		Phase p = this.runningPhases.get(phase);
+		if (p == null)
+			throw new IllegalStateException("Phase " + phase + " not started");
+		samplePeakHeap();
+		this.runningPhases.remove(phase);
+
+		p.runs++;
+		p.wallTime += wallTime - p.startWallTime;
+		if (cpuTime < 0 || p.cpuTime < 0)
+			p.cpuTime = -1;
+		else
+			p.cpuTime += cpuTime - p.startCpuTime;
+		if (allocatedBytes < 0 || p.allocatedBytes < 0)
+			p.allocatedBytes = -1;
+		else
+			p.allocatedBytes += allocatedBytes - p.startAllocatedBytes;
+		p.peakHeap = Math.max(p.peakHeap, p.runPeakHeap);
+
+		return (wallTime - p.startWallTime) / 1000000;
+	}
+
+	/**
+	 * Sets a count, e.g., the number of reachable methods
+	 *
+	 * @param name
+	 *            The name of the count
+	 * @param value
+	 *            The value of the count
+	 */
+	public void setCount(String name, long value) {
+		this.counts.put(name, value);
+	}
+
+	public Map<String, Phase> getPhases() {
+		return this.phases;
+	}
+
+	public Map<String, Long> getCounts() {
+		return this.counts;
+	}
+
+	public void print(PrintStream out) {
+		for (Entry<String, Phase> entry : this.phases.entrySet()) {
+			Phase p = entry.getValue();
+			out.println("\t" + entry.getKey() + ": " + p.wallTime / 1000000
+					+ " ms wall, " + p.cpuTime / 1000000 + " ms CPU, "
+					+ p.allocatedBytes / (1024 * 1024) + " MB allocated, "
+					+ p.peakHeap / (1024 * 1024) + " MB peak heap");
+		}
+		for (Entry<String, Long> entry : this.counts.entrySet())
+			out.println("\t" + entry.getKey() + ": " + entry.getValue());
+	}
+
+	public String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"phases\":{");
+		boolean first = true;
+		for (Entry<String, Phase> entry : this.phases.entrySet()) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			Phase p = entry.getValue();
+			sb.append(Helper.quoteJson(entry.getKey())).append(":{\"runs\":")
+					.append(p.runs).append(",\"wallNanos\":")
+					.append(p.wallTime).append(",\"cpuNanos\":")
+					.append(p.cpuTime).append(",\"allocatedBytes\":")
+					.append(p.allocatedBytes).append(",\"peakHeapBytes\":")
+					.append(p.peakHeap).append('}');
+		}
+		sb.append("},\"counts\":{");
+		first = true;
+		for (Entry<String, Long> entry : this.counts.entrySet()) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append(Helper.quoteJson(entry.getKey())).append(':')
+					.append(entry.getValue());
+		}
+		sb.append("}}");
+		return sb.toString();
+	}
+
+	/**
+	 * Formats the metrics in the Prometheus text exposition format
+	 *
+	 * @param apkPath
+	 *            The APK the metrics belong to, used as a label
+	 * @return The metrics as text
+	 */
+	public String toPrometheus(String apkPath) {
+		String apk = "apk=\"" + escapeLabel(apkPath) + "\"";
+		StringBuilder sb = new StringBuilder();
+
+		appendPhaseMetric(sb, apk, "revdroid_phase_runs",
+				"Number of runs of the phase");
+		appendPhaseMetric(sb, apk, "revdroid_phase_wall_seconds",
+				"Wall time of the phase");
+		appendPhaseMetric(sb, apk, "revdroid_phase_cpu_seconds",
+				"CPU time of the phase on the analyzing thread");
+		appendPhaseMetric(sb, apk, "revdroid_phase_allocated_bytes",
+				"Bytes allocated by the phase on the analyzing thread");
+		appendPhaseMetric(sb, apk, "revdroid_phase_peak_heap_bytes",
+				"Upper bound of the peak heap usage during the phase");
+
+		for (Entry<String, Long> entry : this.counts.entrySet()) {
+			String name = "revdroid_"
+					+ entry.getKey().replaceAll("[^a-zA-Z0-9_]", "_");
+			sb.append("# TYPE ").append(name).append(" gauge\n");
+			sb.append(name).append('{').append(apk).append("} ")
+					.append(entry.getValue()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the metrics of an APK to a file named after the APK. APKs of
+	 * the same name in different directories, e.g., base.apk of split APKs,
+	 * are told apart by a hash of their absolute path.
+	 *
+	 * @param directory
+	 *            The directory to write the file to
+	 * @param apkPath
+	 *            The APK the metrics belong to
+	 * @param format
+	 *            The format of the file
+	 * @throws IOException
+	 *             Thrown if the file cannot be written
+	 */
+	public void write(File directory, String apkPath, Format format)
+			throws IOException {
+		File apk = new File(apkPath);
+		byte[] pathDigest = ResultCache.newDigest().digest(
+				apk.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+		String name = apk.getName() + "-"
+				+ Helper.toHex(Arrays.copyOf(pathDigest, 6));
+		String content;
+		if (format == Format.PROMETHEUS) {
+			name += ".prom";
+			content = toPrometheus(apkPath);
+		} else {
+			name += ".metrics.json";
+			content = toJson() + "\n";
+		}
+		Files.write(new File(directory, name).toPath(),
+				content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void appendPhaseMetric(StringBuilder sb, String apk, String name,
+			String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help)
+				.append('\n');
+		sb.append("# TYPE ").append(name).append(" gauge\n");
+		for (Entry<String, Phase> entry : this.phases.entrySet()) {
+			Phase p = entry.getValue();
+			String value;
+			if (name.equals("revdroid_phase_runs"))
+				value = Integer.toString(p.runs);
+			else if (name.equals("revdroid_phase_wall_seconds"))
+				value = toSeconds(p.wallTime);
+			else if (name.equals("revdroid_phase_cpu_seconds"))
+				value = p.cpuTime < 0 ? null : toSeconds(p.cpuTime);
+			else if (name.equals("revdroid_phase_allocated_bytes"))
+				value = p.allocatedBytes < 0 ? null : Long
+						.toString(p.allocatedBytes);
+			else
+				value = Long.toString(p.peakHeap);
+
+			// Unsupported measurements are left out
+			if (value != null)
+				sb.append(name).append('{').append(apk).append(",phase=\"")
+						.append(escapeLabel(entry.getKey())).append("\"} ")
+						.append(value).append('\n');
+		}
+	}
+
+	private static String toSeconds(long nanos) {
+		return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+	}
+
+	private static String escapeLabel(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n");
+	}
+
+	private void samplePeakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : heapPools)
+			peak += pool.getPeakUsage().getUsed();
+		for (Phase p : this.runningPhases.values())
+			p.runPeakHeap = Math.max(p.runPeakHeap, peak);
+	}
+
+	private static long getCpuTime() {
+		if (!threadBean.isCurrentThreadCpuTimeSupported())
+			return -1;
+		return threadBean.getCurrentThreadCpuTime();
+	}
+
+	private static long getAllocatedBytes() {
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+		if (!bean.isThreadAllocatedMemorySupported())
+			return -1;
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -1,21 +1,101 @@
 package com.lazarusx.revdroid.analyzer;
 
-import soot.jimple.Stmt;
+import java.util.List;
+import java.util.TreeSet;
 
+/**
+ * A call of a permission-protected method which is not guarded against a
+ * SecurityException. Misusages only keep strings, so they do not keep the
+ * Soot scene alive after the analysis.
+ */
 public class Misusage {
-	private Stmt stmt;
+	private String enclosingMethod;
+	private String statement;
+	private int lineNumber;
+	private int bytecodeOffset;
 	private AndroidMethod method;
+	private List<String> callerChain;
 
-	public Misusage(Stmt stmt, AndroidMethod method) {
-		this.stmt = stmt;
+	/**
+	 * @param enclosingMethod
+	 *            The signature of the method containing the call
+	 * @param statement
+	 *            The calling statement in Jimple
+	 * @param lineNumber
+	 *            The source line of the call, or -1 if unknown
+	 * @param bytecodeOffset
+	 *            The bytecode offset of the call, or -1 if unknown
+	 * @param method
+	 *            The method called
+	 * @param callerChain
+	 *            The signatures of the methods on an unguarded path to the
+	 *            call, starting with the caller of the enclosing method
+	 */
+	public Misusage(String enclosingMethod, String statement, int lineNumber,
+			int bytecodeOffset, AndroidMethod method, List<String> callerChain) {
+		this.enclosingMethod = enclosingMethod;
+		this.statement = statement;
+		this.lineNumber = lineNumber;
+		this.bytecodeOffset = bytecodeOffset;
 		this.method = method;
+		this.callerChain = callerChain;
 	}
 
-	public Stmt getStmt() {
-		return stmt;
+	public String getEnclosingMethod() {
+		return enclosingMethod;
+	}
+
+	public String getStatement() {
+		return statement;
+	}
+
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	public int getBytecodeOffset() {
+		return bytecodeOffset;
 	}
 
 	public AndroidMethod getMethod() {
 		return method;
 	}
+
+	public List<String> getCallerChain() {
+		return callerChain;
+	}
+
+	/**
+	 * Appends the fields of this misusage as JSON object members, without
+	 * the enclosing braces
+	 */
+	public void appendJsonMembers(StringBuilder sb) {
+		sb.append("\"method\":").append(Helper.quoteJson(this.enclosingMethod))
+				.append(",\"statement\":")
+				.append(Helper.quoteJson(this.statement));
+		if (this.lineNumber >= 0)
+			sb.append(",\"line\":").append(this.lineNumber);
+		if (this.bytecodeOffset >= 0)
+			sb.append(",\"offset\":").append(this.bytecodeOffset);
+		sb.append(",\"api\":")
+				.append(Helper.quoteJson(this.method.getSignature()))
+				.append(",\"permissions\":[");
+		boolean first = true;
+		for (String permission : new TreeSet<String>(
+				this.method.getPermissions())) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append(Helper.quoteJson(permission));
+		}
+		sb.append("],\"callers\":[");
+		first = true;
+		for (String caller : this.callerChain) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append(Helper.quoteJson(caller));
+		}
+		sb.append(']');
+	}
 }
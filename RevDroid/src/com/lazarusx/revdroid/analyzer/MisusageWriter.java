@@ -0,0 +1,34 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.io.PrintStream;
+
+/**
+ * Writes misusages as newline-delimited JSON, one record per misusage, as
+ * soon as they are found. Every record is flushed, so the results can be
+ * consumed while the analysis is still running.
+ */
+public class MisusageWriter {
+	private final PrintStream out;
+	private final String apkPath;
+
+	/**
+	 * @param out
+	 *            The stream to write the records to
+	 * @param apkPath
+	 *            The APK the misusages belong to, which every record names
+	 */
+	public MisusageWriter(PrintStream out, String apkPath) {
+		this.out = out;
+		this.apkPath = apkPath;
+	}
+
+	public void write(Misusage misusage) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"apk\":").append(Helper.quoteJson(this.apkPath))
+				.append(',');
+		misusage.appendJsonMembers(sb);
+		sb.append('}');
+		this.out.println(sb.toString());
+		this.out.flush();
+	}
+}
@@ -1,14 +1,23 @@
 package com.lazarusx.revdroid.analyzer;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 
 public class PScoutParser {
+	// Suffix of the binary store compiled next to the text mapping
+	public static final String STORE_SUFFIX = ".bin";
+
 	private String filePath;
+	private PScoutStore store;
+	private String digest;
 
 	public static PScoutParser fromFile(String filePath) throws IOException {
 		PScoutParser parser = new PScoutParser();
@@ -22,58 +31,148 @@ public class PScoutParser {
 
 	public ArrayList<AndroidMethod> parse(Set<String> permissions)
 			throws IOException {
-		ArrayList<AndroidMethod> methodsConcerned = new ArrayList<AndroidMethod>();
+		PScoutStore store = getStore();
+		if (store != null) {
+			return store.getMethods(permissions);
+		}
+
+		// The store could not be written, so we stick to the text mapping
+		Map<AndroidMethod, AndroidMethod> methodsConcerned =
+				new LinkedHashMap<AndroidMethod, AndroidMethod>();
+		parseText(permissions, null, methodsConcerned);
+		return new ArrayList<AndroidMethod>(methodsConcerned.values());
+	}
+
+	/**
+	 * Gets the binary store of the mapping. The store is compiled from the
+	 * text mapping if it is missing or stale.
+	 *
+	 * @return The binary store, or null if it cannot be created
+	 * @throws IOException
+	 *             Thrown if the text mapping cannot be read
+	 */
+	public PScoutStore getStore() throws IOException {
+		if (this.store == null) {
+			File sourceFile = new File(this.filePath);
+			File storeFile = new File(this.filePath + STORE_SUFFIX);
+
+			try {
+				this.store = PScoutStore.openIfUpToDate(storeFile, sourceFile);
+			} catch (IOException e) {
+				Helper.printDebugMessage("Ignoring unreadable PScout store: "
+						+ e.getMessage());
+			}
+
+			if (this.store == null) {
+				Set<String> allPermissions = new LinkedHashSet<String>();
+				Map<AndroidMethod, AndroidMethod> allMethods =
+						new LinkedHashMap<AndroidMethod, AndroidMethod>();
+				parseText(null, allPermissions, allMethods);
+
+				try {
+					PScoutStore.compile(storeFile, sourceFile, allPermissions,
+							allMethods.values());
+					this.store = PScoutStore.open(storeFile);
+				} catch (IOException e) {
+					System.err.println("Could not compile PScout store "
+							+ storeFile + ": " + e.getMessage());
+				}
+			}
+		}
+
+		return this.store;
+	}
+
+	/**
+	 * Gets the SHA-256 of the text mapping, which identifies the version of
+	 * the PScout result
+	 *
+	 * @return The hex-encoded digest
+	 * @throws IOException
+	 *             Thrown if the text mapping cannot be read
+	 */
+	public String getDigest() throws IOException {
+		if (this.digest == null) {
+			this.digest = ResultCache.digestFile(new File(this.filePath));
+		}
+		return this.digest;
+	}
+
+	/**
+	 * Parses the text mapping
+	 *
+	 * @param permissions
+	 *            The permissions to parse, or null to parse all of them
+	 * @param permissionsFound
+	 *            Receives the permissions parsed, may be null
+	 * @param methodsConcerned
+	 *            Receives the methods parsed, merged across permissions
+	 * @throws IOException
+	 *             Thrown if the text mapping cannot be read
+	 */
+	private void parseText(Set<String> permissions,
+			Set<String> permissionsFound,
+			Map<AndroidMethod, AndroidMethod> methodsConcerned)
+			throws IOException {
 		BufferedReader reader = new BufferedReader(
 				new FileReader(this.filePath));
 
-		String line;
-		while ((line = reader.readLine()) != null) {
-			if (line.startsWith("Permission:")) {
+		try {
+			String line = reader.readLine();
+			while (line != null) {
+				if (!line.startsWith("Permission:")) {
+					line = reader.readLine();
+					continue;
+				}
+
 				String permission = line.substring(11);
+				if (permissions != null && !permissions.contains(permission)) {
+					line = reader.readLine();
+					continue;
+				}
+
+				if (permissionsFound != null) {
+					permissionsFound.add(permission);
+				}
 
-				if (permissions.contains(permission)) {
-					reader.readLine();
-
-					while ((line = reader.readLine()) != null
-							&& line.startsWith("<")) {
-						String[] tokens = line.split(" ");
-
-						String className = tokens[0].substring(1,
-								tokens[0].length() - 1);
-						String returnType = tokens[1];
-						String methodBody = tokens[2];
-						String methodName = methodBody.substring(0,
-								methodBody.indexOf('('));
-						String parameterString = methodBody.substring(
-								methodBody.indexOf('(') + 1,
-								methodBody.indexOf(')'));
-						String[] parameters;
-						if (parameterString.length() > 0) {
-							parameters = parameterString.split(",");
-						} else {
-							parameters = new String[0];
-						}
-
-						AndroidMethod method = new AndroidMethod(methodName,
-								Arrays.asList(parameters), returnType,
-								className);
-												
-						if (methodsConcerned.contains(method)) {
-							method = methodsConcerned.get(methodsConcerned.indexOf(method));
-							method.addPermission(permission);
-						} else {
-							method.addPermission(permission);
-							methodsConcerned.add(method);
-						}
+				reader.readLine();
+				while ((line = reader.readLine()) != null
+						&& line.startsWith("<")) {
+					AndroidMethod method = parseMethod(line);
+					AndroidMethod existing = methodsConcerned.get(method);
+					if (existing != null) {
+						method = existing;
+					} else {
+						methodsConcerned.put(method, method);
 					}
+					method.addPermission(permission);
 				}
 			}
+		} finally {
+			reader.close();
 		}
+	}
 
-		if (reader != null) {
-			reader.close();
+	// Lines look like <className: returnType methodName(p1,p2)> (...)
+	private static AndroidMethod parseMethod(String line) {
+		int classEnd = line.indexOf(':');
+		int returnEnd = line.indexOf(' ', classEnd + 2);
+		int parametersStart = line.indexOf('(', returnEnd);
+		int parametersEnd = line.indexOf(')', parametersStart);
+
+		String className = line.substring(1, classEnd);
+		String returnType = line.substring(classEnd + 2, returnEnd);
+		String methodName = line.substring(returnEnd + 1, parametersStart);
+		String parameterString = line.substring(parametersStart + 1,
+				parametersEnd);
+		String[] parameters;
+		if (parameterString.length() > 0) {
+			parameters = parameterString.split(",");
+		} else {
+			parameters = new String[0];
 		}
 
-		return methodsConcerned;
+		return new AndroidMethod(methodName, Arrays.asList(parameters),
+				returnType, className);
 	}
 }
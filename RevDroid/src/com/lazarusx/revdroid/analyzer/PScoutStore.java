@@ -0,0 +1,402 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary form of a PScout mapping which is opened through a
+ * memory-mapped file. The layout is:
+ *
+ * <pre>
+ * header      magic, version, source length, source timestamp,
+ *             string count, permission count, method count,
+ *             string table offset, permission table offset,
+ *             method table offset
+ * strings     one absolute offset per string, then (length, UTF-8 bytes)
+ * permissions (name, member count, member offset) per permission,
+ *             followed by the method ids of all members
+ * methods     (class, return type, name, parameters) string ids of every
+ *             method
+ * </pre>
+ *
+ * The structure of a store is checked when it is opened, so a truncated or
+ * otherwise damaged store is rejected instead of failing on first use. Only
+ * the methods belonging to the requested permissions are decoded.
+ */
+public class PScoutStore {
+	private static final int MAGIC = 0x50534342;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 * 3 + 4 * 3;
+	private static final int PERMISSION_RECORD_SIZE = 3 * 4;
+	private static final int METHOD_RECORD_SIZE = 4 * 4;
+
+	private final ByteBuffer buffer;
+	private final int stringCount;
+	private final int methodCount;
+	private final int stringTableOffset;
+	private final int methodTableOffset;
+	private final String[] strings;
+	private final Map<String, Integer> permissionRecords;
+
+	private PScoutStore(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+				|| buffer.getInt(4) != VERSION)
+			throw new IOException("Not a PScout store of version " + VERSION);
+
+		this.stringCount = buffer.getInt(24);
+		int permissionCount = buffer.getInt(28);
+		this.methodCount = buffer.getInt(32);
+		this.stringTableOffset = buffer.getInt(36);
+		int permissionTableOffset = buffer.getInt(40);
+		this.methodTableOffset = buffer.getInt(44);
+
+		try {
+			validate(permissionCount, permissionTableOffset);
+			this.strings = new String[this.stringCount];
+
+			// The permission table is tiny, so we index it right away
+			this.permissionRecords = new HashMap<String, Integer>(
+					permissionCount * 2);
+			for (int i = 0; i < permissionCount; i++) {
+				int record = permissionTableOffset + i
+						* PERMISSION_RECORD_SIZE;
+				this.permissionRecords.put(getString(buffer.getInt(record)),
+						record);
+			}
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException("Malformed PScout store", e);
+		}
+	}
+
+	/**
+	 * Checks that every offset and id in the store lies within the store, so
+	 * reading it later cannot fail
+	 */
+	private void validate(int permissionCount, int permissionTableOffset)
+			throws IOException {
+		if (this.stringCount < 0 || permissionCount < 0
+				|| this.methodCount < 0
+				|| this.stringTableOffset != HEADER_SIZE
+				|| permissionTableOffset < this.stringTableOffset
+				|| this.methodTableOffset < permissionTableOffset
+				|| (long) this.methodTableOffset + (long) this.methodCount
+						* METHOD_RECORD_SIZE != this.buffer.limit())
+			throw new IOException("Truncated or malformed PScout store");
+
+		for (int i = 0; i < this.stringCount; i++) {
+			int offset = this.buffer.getInt(this.stringTableOffset + 4 * i);
+			if (offset < this.stringTableOffset
+					|| offset > permissionTableOffset - 4
+					|| this.buffer.getInt(offset) < 0
+					|| (long) offset + 4 + this.buffer.getInt(offset) > permissionTableOffset)
+				throw new IOException("Malformed string table in PScout store");
+		}
+
+		int memberTableOffset = permissionTableOffset + permissionCount
+				* PERMISSION_RECORD_SIZE;
+		for (int i = 0; i < permissionCount; i++) {
+			int record = permissionTableOffset + i * PERMISSION_RECORD_SIZE;
+			int nameId = this.buffer.getInt(record);
+			int count = this.buffer.getInt(record + 4);
+			int offset = this.buffer.getInt(record + 8);
+			if (nameId < 0 || nameId >= this.stringCount || count < 0
+					|| offset < memberTableOffset
+					|| (long) offset + 4L * count > this.methodTableOffset)
+				throw new IOException(
+						"Malformed permission table in PScout store");
+			for (int j = 0; j < count; j++) {
+				int methodId = this.buffer.getInt(offset + 4 * j);
+				if (methodId < 0 || methodId >= this.methodCount)
+					throw new IOException(
+							"Malformed permission table in PScout store");
+			}
+		}
+
+		for (int i = 0; i < 4 * this.methodCount; i++) {
+			int stringId = this.buffer.getInt(this.methodTableOffset + 4 * i);
+			if (stringId < 0 || stringId >= this.stringCount)
+				throw new IOException("Malformed method table in PScout store");
+		}
+	}
+
+	/**
+	 * Opens a binary store if it exists and was compiled from the given
+	 * mapping in its current state
+	 *
+	 * @param storeFile
+	 *            The binary store
+	 * @param sourceFile
+	 *            The PScout mapping the store has been compiled from
+	 * @return The opened store, or null if it is missing or stale
+	 * @throws IOException
+	 *             Thrown if the store cannot be read or is malformed
+	 */
+	public static PScoutStore openIfUpToDate(File storeFile, File sourceFile)
+			throws IOException {
+		if (!storeFile.isFile() || storeFile.length() < HEADER_SIZE)
+			return null;
+
+		ByteBuffer buffer = map(storeFile);
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+				|| buffer.getLong(8) != sourceFile.length()
+				|| buffer.getLong(16) != sourceFile.lastModified())
+			return null;
+
+		return new PScoutStore(buffer);
+	}
+
+	public static PScoutStore open(File storeFile) throws IOException {
+		return new PScoutStore(map(storeFile));
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			// The mapping stays valid after the channel has been closed
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return buffer;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Compiles the given methods into a binary store
+	 *
+	 * @param storeFile
+	 *            The file to write the store to
+	 * @param sourceFile
+	 *            The PScout mapping the methods have been parsed from
+	 * @param permissions
+	 *            All permissions in the mapping, in the order of the mapping
+	 * @param methods
+	 *            All methods in the mapping with their permissions
+	 * @throws IOException
+	 *             Thrown if the store cannot be written
+	 */
+	public static void compile(File storeFile, File sourceFile,
+			Collection<String> permissions, Collection<AndroidMethod> methods)
+			throws IOException {
+		// Intern all strings
+		List<String> stringList = new ArrayList<String>();
+		Map<String, Integer> stringIds = new HashMap<String, Integer>();
+		List<String> permissionList = new ArrayList<String>(permissions);
+		Map<String, Integer> permissionIds = new HashMap<String, Integer>();
+		for (String permission : permissionList) {
+			permissionIds.put(permission, permissionIds.size());
+			intern(permission, stringList, stringIds);
+		}
+
+		int[][] methodStrings = new int[methods.size()][];
+		List<List<Integer>> members = new ArrayList<List<Integer>>();
+		for (int i = 0; i < permissionList.size(); i++)
+			members.add(new ArrayList<Integer>());
+
+		int methodId = 0;
+		for (AndroidMethod method : methods) {
+			methodStrings[methodId] = new int[] {
+					intern(method.getClassName(), stringList, stringIds),
+					intern(method.getReturnType(), stringList, stringIds),
+					intern(method.getMethodName(), stringList, stringIds),
+					intern(joinParameters(method.getParameters()),
+							stringList, stringIds) };
+
+			for (String permission : method.getPermissions())
+				members.get(permissionIds.get(permission)).add(methodId);
+			methodId++;
+		}
+
+		// Encode the strings to compute the section offsets
+		byte[][] encoded = new byte[stringList.size()][];
+		int stringDataSize = 0;
+		for (int i = 0; i < encoded.length; i++) {
+			encoded[i] = stringList.get(i).getBytes(StandardCharsets.UTF_8);
+			stringDataSize += 4 + encoded[i].length;
+		}
+		int memberCount = 0;
+		for (List<Integer> list : members)
+			memberCount += list.size();
+
+		int stringTableOffset = HEADER_SIZE;
+		int permissionTableOffset = stringTableOffset + 4 * encoded.length
+				+ stringDataSize;
+		int methodTableOffset = permissionTableOffset + PERMISSION_RECORD_SIZE
+				* permissionList.size() + 4 * memberCount;
+
+		// Workers starting together may all compile the store, so each writes
+		// a file of its own
+		File dir = storeFile.getAbsoluteFile().getParentFile();
+		File tmpFile = File.createTempFile(storeFile.getName(), ".tmp", dir);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmpFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(sourceFile.length());
+			out.writeLong(sourceFile.lastModified());
+			out.writeInt(encoded.length);
+			out.writeInt(permissionList.size());
+			out.writeInt(methods.size());
+			out.writeInt(stringTableOffset);
+			out.writeInt(permissionTableOffset);
+			out.writeInt(methodTableOffset);
+
+			int offset = stringTableOffset + 4 * encoded.length;
+			for (byte[] bytes : encoded) {
+				out.writeInt(offset);
+				offset += 4 + bytes.length;
+			}
+			for (byte[] bytes : encoded) {
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			offset = permissionTableOffset + PERMISSION_RECORD_SIZE
+					* permissionList.size();
+			for (int i = 0; i < permissionList.size(); i++) {
+				out.writeInt(stringIds.get(permissionList.get(i)));
+				out.writeInt(members.get(i).size());
+				out.writeInt(offset);
+				offset += 4 * members.get(i).size();
+			}
+			for (List<Integer> list : members)
+				for (int id : list)
+					out.writeInt(id);
+
+			for (int[] ids : methodStrings)
+				for (int id : ids)
+					out.writeInt(id);
+		} catch (IOException e) {
+			out.close();
+			tmpFile.delete();
+			throw e;
+		}
+		out.close();
+
+		// Replace the old store atomically once the new one is complete, so
+		// readers never see a partial store
+		if (!tmpFile.renameTo(storeFile)) {
+			tmpFile.delete();
+			throw new IOException("Could not create " + storeFile);
+		}
+	}
+
+	private static int intern(String s, List<String> stringList,
+			Map<String, Integer> stringIds) {
+		Integer id = stringIds.get(s);
+		if (id == null) {
+			id = stringList.size();
+			stringList.add(s);
+			stringIds.put(s, id);
+		}
+		return id;
+	}
+
+	private static String joinParameters(List<String> parameters) {
+		StringBuilder sb = new StringBuilder();
+		for (String parameter : parameters) {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(parameter);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Gets the methods which require at least one of the given permissions
+	 *
+	 * @param permissions
+	 *            The permissions requested by the application
+	 * @return The methods concerned, each with the requested permissions it
+	 *         requires, in the order of the original mapping
+	 */
+	public ArrayList<AndroidMethod> getMethods(Set<String> permissions) {
+		AndroidMethod[] methods = new AndroidMethod[this.methodCount];
+		int found = 0;
+
+		for (String permission : permissions) {
+			Integer record = this.permissionRecords.get(permission);
+			if (record == null)
+				continue;
+
+			int count = this.buffer.getInt(record + 4);
+			int offset = this.buffer.getInt(record + 8);
+			for (int i = 0; i < count; i++) {
+				int methodId = this.buffer.getInt(offset + 4 * i);
+				if (methods[methodId] == null) {
+					methods[methodId] = getMethod(methodId);
+					found++;
+				}
+				methods[methodId].addPermission(permission);
+			}
+		}
+
+		// Keep the order of the mapping regardless of the permission order
+		ArrayList<AndroidMethod> methodsConcerned = new ArrayList<AndroidMethod>(
+				found);
+		for (AndroidMethod method : methods)
+			if (method != null)
+				methodsConcerned.add(method);
+		return methodsConcerned;
+	}
+
+	public int getMethodCount() {
+		return this.methodCount;
+	}
+
+	public Set<String> getPermissions() {
+		return Collections.unmodifiableSet(this.permissionRecords.keySet());
+	}
+
+	private AndroidMethod getMethod(int methodId) {
+		int record = this.methodTableOffset + methodId * METHOD_RECORD_SIZE;
+		String className = getString(this.buffer.getInt(record));
+		String returnType = getString(this.buffer.getInt(record + 4));
+		String methodName = getString(this.buffer.getInt(record + 8));
+		String parameterString = getString(this.buffer.getInt(record + 12));
+
+		List<String> parameters;
+		if (parameterString.length() > 0) {
+			parameters = Arrays.asList(parameterString.split(","));
+		} else {
+			parameters = Collections.emptyList();
+		}
+		return new AndroidMethod(methodName, parameters, returnType, className);
+	}
+
+	private String getString(int stringId) {
+		String s = this.strings[stringId];
+		if (s == null) {
+			int offset = this.buffer.getInt(this.stringTableOffset + 4
+					* stringId);
+			int length = this.buffer.getInt(offset);
+			byte[] bytes = new byte[length];
+			ByteBuffer view = this.buffer.duplicate();
+			view.position(offset + 4);
+			view.get(bytes);
+			s = new String(bytes, StandardCharsets.UTF_8);
+			this.strings[stringId] = s;
+		}
+		return s;
+	}
+}
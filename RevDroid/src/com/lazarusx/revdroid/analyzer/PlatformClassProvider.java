@@ -0,0 +1,344 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import soot.ArrayType;
+import soot.Body;
+import soot.BooleanType;
+import soot.ByteType;
+import soot.CharType;
+import soot.ClassProvider;
+import soot.ClassSource;
+import soot.CoffiClassProvider;
+import soot.DexClassProvider;
+import soot.DoubleType;
+import soot.FloatType;
+import soot.G;
+import soot.IntType;
+import soot.JimpleClassProvider;
+import soot.LongType;
+import soot.MethodSource;
+import soot.Modifier;
+import soot.RefType;
+import soot.Scene;
+import soot.ShortType;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.SootResolver;
+import soot.SourceLocator;
+import soot.Type;
+import soot.VoidType;
+import soot.javaToJimple.IInitialResolver.Dependencies;
+import soot.options.Options;
+
+/**
+ * Provides the classes of the platform jar from a {@link PlatformSnapshot}
+ * instead of parsing the jar. The hierarchy and member signatures come from
+ * the memory-mapped snapshot. The few method bodies that are ever needed
+ * are read from the jar when they are first asked for.
+ *
+ * Snapshots are built once per platform jar, kept in a directory and
+ * shared by all runs of the JVM.
+ */
+public class PlatformClassProvider implements ClassProvider {
+	private static final Map<String, PlatformSnapshot> snapshots = new HashMap<String, PlatformSnapshot>();
+
+	private final PlatformSnapshot snapshot;
+
+	private PlatformClassProvider(PlatformSnapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Gets the snapshot of a platform jar if the configuration keeps
+	 * snapshots. If the snapshot cannot be read or built, the jar is used as
+	 * is.
+	 *
+	 * @param androidJarPath
+	 *            The platform jar
+	 * @param config
+	 *            The configuration of the run
+	 * @return The snapshot, or null if the jar is to be parsed by Soot
+	 */
+	public static PlatformSnapshot getSnapshot(String androidJarPath,
+			Configuration config) {
+		if (config.getPlatformCacheDirectory() == null)
+			return null;
+		try {
+			return getSnapshot(androidJarPath, config.getPlatformCacheDirectory());
+		} catch (IOException e) {
+			System.err.println("Could not load the platform snapshot of "
+					+ androidJarPath + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the snapshot of a platform jar, building it if there is no
+	 * snapshot of the jar in its current state yet. Building the snapshot
+	 * resets Soot, so this must be called before Soot is set up.
+	 *
+	 * @param androidJarPath
+	 *            The platform jar
+	 * @param directory
+	 *            The directory the snapshots are kept in
+	 * @return The snapshot
+	 * @throws IOException
+	 *             Thrown if the snapshot cannot be read or built
+	 */
+	public static synchronized PlatformSnapshot getSnapshot(
+			String androidJarPath, File directory) throws IOException {
+		File jarFile = new File(androidJarPath);
+		// Platform jars are all called android.jar, so the name of the
+		// platform directory tells them apart
+		File snapshotFile = new File(directory, jarFile.getAbsoluteFile()
+				.getParentFile().getName()
+				+ "-"
+				+ Integer.toHexString(jarFile.getAbsolutePath().hashCode())
+				+ ".snapshot");
+
+		// Platforms do not change while we run, so every snapshot is mapped
+		// only once
+		PlatformSnapshot snapshot = snapshots.get(snapshotFile.getPath());
+		if (snapshot == null) {
+			try {
+				snapshot = PlatformSnapshot.openIfUpToDate(snapshotFile, jarFile);
+			} catch (IOException e) {
+				// A damaged snapshot is rebuilt just like a stale one
+				System.err.println("Could not read " + snapshotFile + ": "
+						+ e.getMessage());
+			}
+			if (snapshot == null) {
+				if (!directory.isDirectory() && !directory.mkdirs())
+					throw new IOException("Could not create " + directory);
+				build(jarFile, snapshotFile);
+				snapshot = PlatformSnapshot.openIfUpToDate(snapshotFile,
+						jarFile);
+				if (snapshot == null)
+					throw new IOException("Could not build " + snapshotFile);
+			}
+			snapshots.put(snapshotFile.getPath(), snapshot);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Loads the signatures of all classes of a platform jar into a fresh
+	 * Soot scene and writes them into a snapshot
+	 */
+	private static void build(File jarFile, File snapshotFile)
+			throws IOException {
+		Helper.printDebugMessage("Building the platform snapshot of "
+				+ jarFile);
+
+		List<String> classNames = new ArrayList<String>();
+		ZipFile zip = new ZipFile(jarFile);
+		try {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				String name = entries.nextElement().getName();
+				if (name.endsWith(".class"))
+					classNames.add(name.substring(0,
+							name.length() - ".class".length())
+							.replace('/', '.'));
+			}
+		} finally {
+			zip.close();
+		}
+
+		G.reset();
+		Helper.setOutput();
+		Options.v().set_allow_phantom_refs(true);
+		Options.v().set_output_format(Options.output_format_none);
+		Options.v().set_soot_classpath(jarFile.getPath());
+
+		List<SootClass> classes = new ArrayList<SootClass>(classNames.size());
+		for (String className : classNames) {
+			SootClass sc = Scene.v().forceResolve(className,
+					SootClass.SIGNATURES);
+			if (!sc.isPhantom())
+				classes.add(sc);
+		}
+		PlatformSnapshot.compile(snapshotFile, jarFile, classes);
+		G.reset();
+	}
+
+	/**
+	 * Makes Soot look up platform classes in the given snapshot. Must be
+	 * called after the Soot options are set and before any class is loaded.
+	 * The classes of the app take precedence, as with the platform jar.
+	 *
+	 * @param snapshot
+	 *            The snapshot of the platform jar on the Soot classpath
+	 */
+	public static void install(PlatformSnapshot snapshot) {
+		List<ClassProvider> providers = new ArrayList<ClassProvider>();
+		providers.add(new DexClassProvider());
+		providers.add(new PlatformClassProvider(snapshot));
+		// Classes missing in the snapshot are still found on the classpath
+		providers.add(new CoffiClassProvider());
+		providers.add(new JimpleClassProvider());
+		SourceLocator.v().setClassProviders(providers);
+	}
+
+	@Override
+	public ClassSource find(String className) {
+		PlatformSnapshot.ClassModel model = this.snapshot.getClass(className);
+		if (model == null)
+			return null;
+		return new SnapshotClassSource(model);
+	}
+
+	/**
+	 * Converts a type name as printed by Soot, e.g., java.lang.String[], to
+	 * a type
+	 */
+	private static Type toType(String name) {
+		int dimensions = 0;
+		while (name.endsWith("[]")) {
+			dimensions++;
+			name = name.substring(0, name.length() - 2);
+		}
+
+		Type type;
+		if (name.equals("void"))
+			type = VoidType.v();
+		else if (name.equals("boolean"))
+			type = BooleanType.v();
+		else if (name.equals("byte"))
+			type = ByteType.v();
+		else if (name.equals("short"))
+			type = ShortType.v();
+		else if (name.equals("char"))
+			type = CharType.v();
+		else if (name.equals("int"))
+			type = IntType.v();
+		else if (name.equals("long"))
+			type = LongType.v();
+		else if (name.equals("float"))
+			type = FloatType.v();
+		else if (name.equals("double"))
+			type = DoubleType.v();
+		else
+			type = RefType.v(name);
+		return dimensions == 0 ? type : ArrayType.v(type, dimensions);
+	}
+
+	private static void addDependency(Dependencies deps, Type type) {
+		if (type instanceof ArrayType)
+			type = ((ArrayType) type).baseType;
+		if (type instanceof RefType)
+			deps.typesToSignature.add(type);
+	}
+
+	/**
+	 * Fills a class with the hierarchy and signatures of the snapshot
+	 */
+	private static class SnapshotClassSource extends ClassSource {
+		private final PlatformSnapshot.ClassModel model;
+		// The class as read from the jar, only loaded for bodies
+		private SootClass original = null;
+
+		SnapshotClassSource(PlatformSnapshot.ClassModel model) {
+			super(model.name);
+			this.model = model;
+		}
+
+		@Override
+		public Dependencies resolve(SootClass sc) {
+			Dependencies deps = new Dependencies();
+			sc.setModifiers(this.model.modifiers);
+			if (this.model.superclass != null) {
+				sc.setSuperclass(SootResolver.v().makeClassRef(
+						this.model.superclass));
+				deps.typesToHierarchy.add(RefType.v(this.model.superclass));
+			}
+			for (String i : this.model.interfaces) {
+				sc.addInterface(SootResolver.v().makeClassRef(i));
+				deps.typesToHierarchy.add(RefType.v(i));
+			}
+
+			for (PlatformSnapshot.FieldModel f : this.model.fields) {
+				Type type = toType(f.type);
+				sc.addField(new SootField(f.name, type, f.modifiers));
+				addDependency(deps, type);
+			}
+
+			for (PlatformSnapshot.MethodModel m : this.model.methods) {
+				List<Type> parameters = new ArrayList<Type>(
+						m.parameters.size());
+				for (String p : m.parameters) {
+					Type type = toType(p);
+					parameters.add(type);
+					addDependency(deps, type);
+				}
+				Type returnType = toType(m.returnType);
+				addDependency(deps, returnType);
+
+				List<SootClass> exceptions = new ArrayList<SootClass>(
+						m.exceptions.size());
+				for (String e : m.exceptions) {
+					exceptions.add(SootResolver.v().makeClassRef(e));
+					deps.typesToSignature.add(RefType.v(e));
+				}
+
+				SootMethod method = new SootMethod(m.name, parameters,
+						returnType, m.modifiers, exceptions);
+				sc.addMethod(method);
+				if (!Modifier.isAbstract(m.modifiers)
+						&& !Modifier.isNative(m.modifiers))
+					method.setSource(new JarMethodSource(this));
+			}
+			return deps;
+		}
+
+		/**
+		 * Reads the class from the platform jar, detached from the scene
+		 */
+		synchronized SootClass getOriginal() {
+			if (this.original == null) {
+				ClassSource source = new CoffiClassProvider()
+						.find(this.className);
+				if (source == null)
+					throw new RuntimeException("Class " + this.className
+							+ " not found on the Soot classpath");
+				SootClass original = new SootClass(this.className);
+				source.resolve(original);
+				this.original = original;
+			}
+			return this.original;
+		}
+	}
+
+	/**
+	 * Creates the body of a platform method from the jar when it is first
+	 * asked for
+	 */
+	private static class JarMethodSource implements MethodSource {
+		private final SnapshotClassSource classSource;
+
+		JarMethodSource(SnapshotClassSource classSource) {
+			this.classSource = classSource;
+		}
+
+		@Override
+		public Body getBody(SootMethod m, String phaseName) {
+			SootClass original = this.classSource.getOriginal();
+			String subSignature = m.getSubSignature();
+			if (!original.declaresMethod(subSignature))
+				throw new RuntimeException("Method " + m.getSignature()
+						+ " not found in the platform jar");
+			return original.getMethod(subSignature).getSource()
+					.getBody(m, phaseName);
+		}
+	}
+}
@@ -0,0 +1,502 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.Type;
+
+/**
+ * Class hierarchy and member signatures of a platform jar, stored in a
+ * compact binary file which is opened through a memory-mapped file. The
+ * layout is:
+ *
+ * <pre>
+ * header  magic, version, source length, source timestamp,
+ *         string count, class count, string table offset,
+ *         class table offset, snapshot length
+ * strings one absolute offset per string, then (length, UTF-8 bytes)
+ * classes (name, record offset) per class, sorted by name, followed by
+ *         one record per class:
+ *         modifiers, superclass or -1, interface count, interfaces,
+ *         field count, (name, type, modifiers) per field,
+ *         method count, (name, return type, modifiers, parameter count,
+ *         parameters, exception count, exceptions) per method
+ * </pre>
+ *
+ * Names and types are string ids. Classes are only decoded when they are
+ * looked up, but the whole snapshot is checked when it is opened.
+ */
+public class PlatformSnapshot {
+	private static final int MAGIC = 0x52445053;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 * 5;
+	private static final int CLASS_INDEX_RECORD_SIZE = 2 * 4;
+
+	public static class FieldModel {
+		public final String name;
+		public final String type;
+		public final int modifiers;
+
+		FieldModel(String name, String type, int modifiers) {
+			this.name = name;
+			this.type = type;
+			this.modifiers = modifiers;
+		}
+	}
+
+	public static class MethodModel {
+		public final String name;
+		public final String returnType;
+		public final int modifiers;
+		public final List<String> parameters;
+		public final List<String> exceptions;
+
+		MethodModel(String name, String returnType, int modifiers,
+				List<String> parameters, List<String> exceptions) {
+			this.name = name;
+			this.returnType = returnType;
+			this.modifiers = modifiers;
+			this.parameters = parameters;
+			this.exceptions = exceptions;
+		}
+	}
+
+	public static class ClassModel {
+		public final String name;
+		public final int modifiers;
+		// Null for java.lang.Object
+		public final String superclass;
+		public final List<String> interfaces;
+		public final List<FieldModel> fields;
+		public final List<MethodModel> methods;
+
+		ClassModel(String name, int modifiers, String superclass,
+				List<String> interfaces, List<FieldModel> fields,
+				List<MethodModel> methods) {
+			this.name = name;
+			this.modifiers = modifiers;
+			this.superclass = superclass;
+			this.interfaces = interfaces;
+			this.fields = fields;
+			this.methods = methods;
+		}
+	}
+
+	private final ByteBuffer buffer;
+	private final int classCount;
+	private final int stringTableOffset;
+	private final int classTableOffset;
+	private final String[] strings;
+
+	private PlatformSnapshot(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+				|| buffer.getInt(4) != VERSION)
+			throw new IOException("Not a platform snapshot of version "
+					+ VERSION);
+
+		int stringCount = buffer.getInt(24);
+		this.classCount = buffer.getInt(28);
+		this.stringTableOffset = buffer.getInt(32);
+		this.classTableOffset = buffer.getInt(36);
+
+		try {
+			validate(stringCount, buffer.getInt(40));
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException("Malformed platform snapshot", e);
+		}
+		this.strings = new String[stringCount];
+	}
+
+	/**
+	 * Checks that the snapshot is complete and that every offset and id in
+	 * it lies within the snapshot, so decoding a class later cannot fail
+	 */
+	private void validate(int stringCount, int length) throws IOException {
+		if (length != this.buffer.limit() || stringCount < 0
+				|| this.classCount < 0
+				|| this.stringTableOffset != HEADER_SIZE
+				|| this.classTableOffset < this.stringTableOffset
+				|| (long) this.classTableOffset + (long) this.classCount
+						* CLASS_INDEX_RECORD_SIZE > length)
+			throw new IOException("Truncated or malformed platform snapshot");
+
+		for (int i = 0; i < stringCount; i++) {
+			int offset = this.buffer.getInt(this.stringTableOffset + 4 * i);
+			if (offset < this.stringTableOffset
+					|| offset > this.classTableOffset - 4
+					|| this.buffer.getInt(offset) < 0
+					|| (long) offset + 4 + this.buffer.getInt(offset) > this.classTableOffset)
+				throw new IOException(
+						"Malformed string table in platform snapshot");
+		}
+
+		int recordOffset = this.classTableOffset + this.classCount
+				* CLASS_INDEX_RECORD_SIZE;
+		for (int i = 0; i < this.classCount; i++) {
+			int entry = this.classTableOffset + i * CLASS_INDEX_RECORD_SIZE;
+			checkString(this.buffer.getInt(entry), stringCount);
+			int position = this.buffer.getInt(entry + 4);
+			if (position < recordOffset)
+				throw new IOException(
+						"Malformed class table in platform snapshot");
+
+			int superclassId = this.buffer.getInt(position + 4);
+			if (superclassId != -1)
+				checkString(superclassId, stringCount);
+			position = checkStrings(position + 8, stringCount);
+
+			int fieldCount = checkCount(this.buffer.getInt(position));
+			position += 4;
+			for (int j = 0; j < fieldCount; j++, position += 12) {
+				checkString(this.buffer.getInt(position), stringCount);
+				checkString(this.buffer.getInt(position + 4), stringCount);
+			}
+
+			int methodCount = checkCount(this.buffer.getInt(position));
+			position += 4;
+			for (int j = 0; j < methodCount; j++) {
+				checkString(this.buffer.getInt(position), stringCount);
+				checkString(this.buffer.getInt(position + 4), stringCount);
+				position = checkStrings(position + 12, stringCount);
+				position = checkStrings(position, stringCount);
+			}
+		}
+	}
+
+	/**
+	 * Checks a count followed by as many string ids
+	 *
+	 * @return The position after the string ids
+	 */
+	private int checkStrings(int position, int stringCount) throws IOException {
+		int count = checkCount(this.buffer.getInt(position));
+		position += 4;
+		for (int i = 0; i < count; i++, position += 4)
+			checkString(this.buffer.getInt(position), stringCount);
+		return position;
+	}
+
+	private static int checkCount(int count) throws IOException {
+		if (count < 0)
+			throw new IOException("Malformed class table in platform snapshot");
+		return count;
+	}
+
+	private static void checkString(int stringId, int stringCount)
+			throws IOException {
+		if (stringId < 0 || stringId >= stringCount)
+			throw new IOException("Malformed class table in platform snapshot");
+	}
+
+	/**
+	 * Opens a snapshot if it exists and was built from the given platform
+	 * jar in its current state
+	 *
+	 * @param snapshotFile
+	 *            The snapshot
+	 * @param jarFile
+	 *            The platform jar the snapshot has been built from
+	 * @return The opened snapshot, or null if it is missing or stale
+	 * @throws IOException
+	 *             Thrown if the snapshot cannot be read
+	 */
+	public static PlatformSnapshot openIfUpToDate(File snapshotFile,
+			File jarFile) throws IOException {
+		if (!snapshotFile.isFile() || snapshotFile.length() < HEADER_SIZE)
+			return null;
+
+		ByteBuffer buffer = map(snapshotFile);
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+				|| buffer.getLong(8) != jarFile.length()
+				|| buffer.getLong(16) != jarFile.lastModified())
+			return null;
+
+		return new PlatformSnapshot(buffer);
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			// The mapping stays valid after the channel has been closed
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return buffer;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the given classes into a snapshot
+	 *
+	 * @param snapshotFile
+	 *            The file to write the snapshot to
+	 * @param jarFile
+	 *            The platform jar the classes have been loaded from
+	 * @param classes
+	 *            The classes, resolved to at least the signatures of their
+	 *            members
+	 * @throws IOException
+	 *             Thrown if the snapshot cannot be written
+	 */
+	public static void compile(File snapshotFile, File jarFile,
+			Collection<SootClass> classes) throws IOException {
+		List<SootClass> sorted = new ArrayList<SootClass>(classes);
+		Collections.sort(sorted, new Comparator<SootClass>() {
+			@Override
+			public int compare(SootClass a, SootClass b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+
+		// Intern all strings and lay out the class records
+		List<String> stringList = new ArrayList<String>();
+		Map<String, Integer> stringIds = new HashMap<String, Integer>();
+		List<int[]> records = new ArrayList<int[]>(sorted.size());
+		for (SootClass sc : sorted) {
+			List<Integer> record = new ArrayList<Integer>();
+			record.add(sc.getModifiers());
+			record.add(sc.hasSuperclass() ? intern(sc.getSuperclass()
+					.getName(), stringList, stringIds) : -1);
+			record.add(sc.getInterfaceCount());
+			for (SootClass i : sc.getInterfaces())
+				record.add(intern(i.getName(), stringList, stringIds));
+
+			record.add(sc.getFieldCount());
+			for (SootField f : sc.getFields()) {
+				record.add(intern(f.getName(), stringList, stringIds));
+				record.add(intern(f.getType().toString(), stringList,
+						stringIds));
+				record.add(f.getModifiers());
+			}
+
+			record.add(sc.getMethodCount());
+			for (SootMethod m : sc.getMethods()) {
+				record.add(intern(m.getName(), stringList, stringIds));
+				record.add(intern(m.getReturnType().toString(), stringList,
+						stringIds));
+				record.add(m.getModifiers());
+				record.add(m.getParameterCount());
+				for (Type t : m.getParameterTypes())
+					record.add(intern(t.toString(), stringList, stringIds));
+				record.add(m.getExceptions().size());
+				for (SootClass e : m.getExceptions())
+					record.add(intern(e.getName(), stringList, stringIds));
+			}
+
+			int[] values = new int[record.size()];
+			for (int i = 0; i < values.length; i++)
+				values[i] = record.get(i);
+			records.add(values);
+		}
+		int[] classNames = new int[sorted.size()];
+		for (int i = 0; i < classNames.length; i++)
+			classNames[i] = intern(sorted.get(i).getName(), stringList,
+					stringIds);
+
+		// Encode the strings to compute the section offsets
+		byte[][] encoded = new byte[stringList.size()][];
+		int stringDataSize = 0;
+		for (int i = 0; i < encoded.length; i++) {
+			encoded[i] = stringList.get(i).getBytes(StandardCharsets.UTF_8);
+			stringDataSize += 4 + encoded[i].length;
+		}
+
+		int stringTableOffset = HEADER_SIZE;
+		int classTableOffset = stringTableOffset + 4 * encoded.length
+				+ stringDataSize;
+		int length = classTableOffset + CLASS_INDEX_RECORD_SIZE
+				* sorted.size();
+		for (int[] record : records)
+			length += 4 * record.length;
+
+		// Workers starting together may all build the snapshot, so each
+		// writes a file of its own
+		File dir = snapshotFile.getAbsoluteFile().getParentFile();
+		File tmpFile = File.createTempFile(snapshotFile.getName(), ".tmp", dir);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmpFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(jarFile.length());
+			out.writeLong(jarFile.lastModified());
+			out.writeInt(encoded.length);
+			out.writeInt(sorted.size());
+			out.writeInt(stringTableOffset);
+			out.writeInt(classTableOffset);
+			out.writeInt(length);
+
+			int offset = stringTableOffset + 4 * encoded.length;
+			for (byte[] bytes : encoded) {
+				out.writeInt(offset);
+				offset += 4 + bytes.length;
+			}
+			for (byte[] bytes : encoded) {
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			offset = classTableOffset + CLASS_INDEX_RECORD_SIZE
+					* sorted.size();
+			for (int i = 0; i < classNames.length; i++) {
+				out.writeInt(classNames[i]);
+				out.writeInt(offset);
+				offset += 4 * records.get(i).length;
+			}
+			for (int[] record : records)
+				for (int value : record)
+					out.writeInt(value);
+		} catch (IOException e) {
+			out.close();
+			tmpFile.delete();
+			throw e;
+		}
+		out.close();
+
+		// Replace the old snapshot atomically once the new one is complete,
+		// so readers never see a partial snapshot
+		if (!tmpFile.renameTo(snapshotFile)) {
+			tmpFile.delete();
+			throw new IOException("Could not create " + snapshotFile);
+		}
+	}
+
+	private static int intern(String s, List<String> stringList,
+			Map<String, Integer> stringIds) {
+		Integer id = stringIds.get(s);
+		if (id == null) {
+			id = stringList.size();
+			stringList.add(s);
+			stringIds.put(s, id);
+		}
+		return id;
+	}
+
+	public int getClassCount() {
+		return this.classCount;
+	}
+
+	/**
+	 * Looks up a class of the platform
+	 *
+	 * @param className
+	 *            The name of the class
+	 * @return The class, or null if the platform does not contain it
+	 */
+	public ClassModel getClass(String className) {
+		int record = findClass(className);
+		if (record < 0)
+			return null;
+
+		int position = record;
+		int modifiers = this.buffer.getInt(position);
+		int superclassId = this.buffer.getInt(position + 4);
+		position += 8;
+
+		int interfaceCount = this.buffer.getInt(position);
+		position += 4;
+		List<String> interfaces = new ArrayList<String>(interfaceCount);
+		for (int i = 0; i < interfaceCount; i++, position += 4)
+			interfaces.add(getString(this.buffer.getInt(position)));
+
+		int fieldCount = this.buffer.getInt(position);
+		position += 4;
+		List<FieldModel> fields = new ArrayList<FieldModel>(fieldCount);
+		for (int i = 0; i < fieldCount; i++, position += 12)
+			fields.add(new FieldModel(getString(this.buffer.getInt(position)),
+					getString(this.buffer.getInt(position + 4)), this.buffer
+							.getInt(position + 8)));
+
+		int methodCount = this.buffer.getInt(position);
+		position += 4;
+		List<MethodModel> methods = new ArrayList<MethodModel>(methodCount);
+		for (int i = 0; i < methodCount; i++) {
+			String name = getString(this.buffer.getInt(position));
+			String returnType = getString(this.buffer.getInt(position + 4));
+			int methodModifiers = this.buffer.getInt(position + 8);
+			int parameterCount = this.buffer.getInt(position + 12);
+			position += 16;
+			List<String> parameters = new ArrayList<String>(parameterCount);
+			for (int j = 0; j < parameterCount; j++, position += 4)
+				parameters.add(getString(this.buffer.getInt(position)));
+			int exceptionCount = this.buffer.getInt(position);
+			position += 4;
+			List<String> exceptions = new ArrayList<String>(exceptionCount);
+			for (int j = 0; j < exceptionCount; j++, position += 4)
+				exceptions.add(getString(this.buffer.getInt(position)));
+			methods.add(new MethodModel(name, returnType, methodModifiers,
+					parameters, exceptions));
+		}
+
+		return new ClassModel(className, modifiers, superclassId < 0 ? null
+				: getString(superclassId), interfaces, fields, methods);
+	}
+
+	public boolean containsClass(String className) {
+		return findClass(className) >= 0;
+	}
+
+	/**
+	 * Binary search over the sorted class table
+	 *
+	 * @return The offset of the record of the class, or -1 if there is none
+	 */
+	private int findClass(String className) {
+		int low = 0;
+		int high = this.classCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int entry = this.classTableOffset + middle
+					* CLASS_INDEX_RECORD_SIZE;
+			int cmp = getString(this.buffer.getInt(entry)).compareTo(
+					className);
+			if (cmp < 0)
+				low = middle + 1;
+			else if (cmp > 0)
+				high = middle - 1;
+			else
+				return this.buffer.getInt(entry + 4);
+		}
+		return -1;
+	}
+
+	private String getString(int stringId) {
+		// Strings may be decoded by several threads, which at worst decode
+		// the same string twice
+		String s = this.strings[stringId];
+		if (s == null) {
+			int offset = this.buffer.getInt(this.stringTableOffset + 4
+					* stringId);
+			int length = this.buffer.getInt(offset);
+			byte[] bytes = new byte[length];
+			ByteBuffer view = this.buffer.duplicate();
+			view.position(offset + 4);
+			view.get(bytes);
+			s = new String(bytes, StandardCharsets.UTF_8);
+			this.strings[stringId] = s;
+		}
+		return s;
+	}
+}
@@ -0,0 +1,184 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import soot.Body;
+import soot.Unit;
+import soot.jimple.Stmt;
+import soot.toolkits.graph.UnitGraph;
+
+/**
+ * Answers whether a statement is dominated by a proactive permission check.
+ * For every body, the dominator tree of its exceptional unit graph is
+ * computed once with the algorithm of Cooper, Harvey and Kennedy, and a
+ * flag is propagated down the tree marking all units with a permission
+ * check among their dominators. The index may be queried from several
+ * threads.
+ */
+public class ProactiveCheckIndex {
+	// Match method name String instead of the entire AndroidMethod because
+	// subclasses of Context also have the following methods
+	// TODO: do it more precisely
+	private static final Set<String> PERMISSION_CHECKERS = Collections
+			.unmodifiableSet(new HashSet<String>(Arrays.asList(
+					"checkPermission",
+					"checkCallingPermission",
+					"checkCallingOrSelfPermission",
+					"checkUidPermission")));
+
+	// Index of the virtual root dominating all heads of a graph
+	private static final int ROOT = 0;
+	private static final int UNDEFINED = -1;
+
+	private final ConcurrentMap<Body, BodyIndex> bodies = new ConcurrentHashMap<Body, BodyIndex>();
+
+	/**
+	 * Units of a body numbered in reverse postorder, with a flag telling
+	 * whether a unit is dominated by a permission check
+	 */
+	private static class BodyIndex {
+		final Map<Unit, Integer> numbers;
+		final boolean[] checked;
+
+		BodyIndex(Map<Unit, Integer> numbers, boolean[] checked) {
+			this.numbers = numbers;
+			this.checked = checked;
+		}
+	}
+
+	/**
+	 * Find whether a Stmt which belongs to a Body is wrapped by a proactive
+	 * permission check. Statements which cannot be reached from the heads
+	 * of the body are never wrapped.
+	 *
+	 * @param stmt
+	 *            the Stmt which might lead to SecurityException
+	 * @param body
+	 *            the body which Stmt belongs to
+	 * @return True if a permission check dominates the statement
+	 */
+	public boolean isDominatedByCheck(Stmt stmt, Body body) {
+		BodyIndex index = this.bodies.get(body);
+		if (index == null) {
+			// Threads racing for the same body build equal indices
+			index = buildIndex(body);
+			BodyIndex existing = this.bodies.putIfAbsent(body, index);
+			if (existing != null)
+				index = existing;
+		}
+
+		Integer number = index.numbers.get(stmt);
+		return number != null && index.checked[number];
+	}
+
+	public int size() {
+		return this.bodies.size();
+	}
+
+	private static boolean isPermissionCheck(Unit unit) {
+		if (unit instanceof Stmt) {
+			Stmt stmt = (Stmt) unit;
+			return stmt.containsInvokeExpr()
+					&& PERMISSION_CHECKERS.contains(stmt.getInvokeExpr()
+							.getMethodRef().name());
+		}
+		return false;
+	}
+
+	private static BodyIndex buildIndex(Body body) {
+		UnitGraph graph = Helper.newExceptionalUnitGraph(body);
+
+		// Number the reachable units in reverse postorder. Number 0 is
+		// reserved for a virtual root preceding all heads.
+		List<Unit> heads = graph.getHeads();
+		Unit[] postorder = new Unit[graph.size()];
+		int count = 0;
+		Set<Unit> visited = new HashSet<Unit>(graph.size() * 2);
+		Deque<Unit> stack = new ArrayDeque<Unit>();
+		Deque<Iterator<Unit>> successors = new ArrayDeque<Iterator<Unit>>();
+		for (Unit head : heads) {
+			if (!visited.add(head))
+				continue;
+			stack.push(head);
+			successors.push(graph.getSuccsOf(head).iterator());
+			while (!stack.isEmpty()) {
+				Iterator<Unit> it = successors.peek();
+				if (it.hasNext()) {
+					Unit succ = it.next();
+					if (visited.add(succ)) {
+						stack.push(succ);
+						successors.push(graph.getSuccsOf(succ).iterator());
+					}
+				} else {
+					postorder[count++] = stack.pop();
+					successors.pop();
+				}
+			}
+		}
+
+		int size = count + 1;
+		Unit[] units = new Unit[size];
+		Map<Unit, Integer> numbers = new HashMap<Unit, Integer>(size * 2);
+		for (int i = 1; i < size; i++) {
+			units[i] = postorder[count - i];
+			numbers.put(units[i], i);
+		}
+		Set<Unit> headSet = new HashSet<Unit>(heads);
+
+		// Compute the immediate dominators
+		int[] idom = new int[size];
+		Arrays.fill(idom, UNDEFINED);
+		idom[ROOT] = ROOT;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 1; i < size; i++) {
+				int newIdom = headSet.contains(units[i]) ? ROOT : UNDEFINED;
+				for (Unit pred : graph.getPredsOf(units[i])) {
+					Integer p = numbers.get(pred);
+					if (p == null || idom[p] == UNDEFINED)
+						continue;
+					newIdom = newIdom == UNDEFINED ? p : intersect(idom, p,
+							newIdom);
+				}
+				if (idom[i] != newIdom) {
+					idom[i] = newIdom;
+					changed = true;
+				}
+			}
+		}
+
+		// Propagate the flag down the dominator tree. Immediate dominators
+		// always precede their units in reverse postorder.
+		boolean[] checked = new boolean[size];
+		for (int i = 1; i < size; i++) {
+			checked[i] = checked[idom[i]] || isPermissionCheck(units[i]);
+			if (checked[i] && !checked[idom[i]])
+				Helper.printDebugMessage("Proactive permission check found: "
+						+ units[i]);
+		}
+
+		return new BodyIndex(numbers, checked);
+	}
+
+	private static int intersect(int[] idom, int a, int b) {
+		while (a != b) {
+			while (a > b)
+				a = idom[a];
+			while (b > a)
+				b = idom[b];
+		}
+		return a;
+	}
+}
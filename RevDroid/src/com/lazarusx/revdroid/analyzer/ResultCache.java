@@ -0,0 +1,231 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk cache of analysis results. Entries are addressed by the SHA-256
+ * of the APK together with everything else that determines the result: the
+ * platform jar the APK is analyzed against, the digest of the PScout
+ * mapping, the settings which change the result and the version of the
+ * analyzer. The cache is bounded in size and
+ * evicts the least recently used entries first.
+ */
+public class ResultCache {
+	// Must be changed whenever a change of the analysis changes its results
+	public static final String ANALYZER_VERSION = "3";
+
+	private final File directory;
+	private final long maxSize;
+	private long size;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Opens a cache
+	 *
+	 * @param directory
+	 *            The directory of the cache, created if it does not exist
+	 * @param maxSize
+	 *            The maximum size of all entries in bytes
+	 * @throws IOException
+	 *             Thrown if the directory cannot be created
+	 */
+	public ResultCache(File directory, long maxSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.size = 0;
+		for (File entry : listEntries())
+			this.size += entry.length();
+	}
+
+	/**
+	 * Computes the key of an APK
+	 *
+	 * @param apkPath
+	 *            The APK
+	 * @param androidJarPath
+	 *            The platform jar the APK is analyzed against
+	 * @param pscoutDigest
+	 *            The digest of the PScout mapping
+	 * @param config
+	 *            The configuration the APK is analyzed with
+	 * @return The key of the APK
+	 * @throws IOException
+	 *             Thrown if the APK cannot be read
+	 */
+	public static String computeKey(String apkPath, String androidJarPath,
+			String pscoutDigest, Configuration config) throws IOException {
+		MessageDigest digest = newDigest();
+		digest.update(digestFile(new File(apkPath)).getBytes(
+				StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(androidJarPath.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(pscoutDigest.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(config.getResultSettings().getBytes(
+				StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(ANALYZER_VERSION.getBytes(StandardCharsets.UTF_8));
+		return Helper.toHex(digest.digest());
+	}
+
+	/**
+	 * Computes the SHA-256 of a file
+	 *
+	 * @param file
+	 *            The file to hash
+	 * @return The hex-encoded digest
+	 * @throws IOException
+	 *             Thrown if the file cannot be read
+	 */
+	public static String digestFile(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+		return Helper.toHex(digest.digest());
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM is required to support SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Gets a cached result
+	 *
+	 * @param key
+	 *            The key computed by {@link #computeKey}
+	 * @return The cached result, or null if there is none
+	 */
+	public synchronized String get(String key) {
+		File entry = getEntry(key);
+		try {
+			String value = new String(Files.readAllBytes(entry.toPath()),
+					StandardCharsets.UTF_8);
+			entry.setLastModified(System.currentTimeMillis());
+			this.hits++;
+			return value;
+		} catch (IOException e) {
+			// Missing, or evicted by another process in the meantime
+			this.misses++;
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a result
+	 *
+	 * @param key
+	 *            The key computed by {@link #computeKey}
+	 * @param value
+	 *            The result to store
+	 * @throws IOException
+	 *             Thrown if the result cannot be written
+	 */
+	public synchronized void put(String key, String value) throws IOException {
+		File entry = getEntry(key);
+		File dir = entry.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+
+		// Other processes may share the cache, so entries appear atomically
+		File tmpFile = File.createTempFile(key, ".tmp", dir);
+		Files.write(tmpFile.toPath(), value.getBytes(StandardCharsets.UTF_8));
+		long oldLength = entry.length();
+		if (!tmpFile.renameTo(entry)) {
+			tmpFile.delete();
+			throw new IOException("Could not create " + entry);
+		}
+
+		this.size += entry.length() - oldLength;
+		if (this.size > this.maxSize)
+			evict();
+	}
+
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	private File getEntry(String key) {
+		return new File(new File(this.directory, key.substring(0, 2)), key);
+	}
+
+	private List<File> listEntries() {
+		List<File> entries = new ArrayList<File>();
+		File[] dirs = this.directory.listFiles();
+		if (dirs != null)
+			for (File dir : dirs) {
+				File[] files = dir.listFiles();
+				if (files != null)
+					for (File file : files)
+						if (!file.getName().endsWith(".tmp"))
+							entries.add(file);
+			}
+		return entries;
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache is at most
+	 * three quarters full
+	 */
+	private void evict() {
+		List<File> entries = listEntries();
+		long total = 0;
+		// Take a snapshot, other processes may touch entries while we sort
+		final Map<File, Long> lastModified = new HashMap<File, Long>(
+				entries.size() * 2);
+		for (File entry : entries) {
+			total += entry.length();
+			lastModified.put(entry, entry.lastModified());
+		}
+
+		Collections.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(lastModified.get(f1), lastModified.get(f2));
+			}
+		});
+
+		long target = this.maxSize / 4 * 3;
+		for (File entry : entries) {
+			if (total <= target)
+				break;
+			long length = entry.length();
+			if (entry.delete())
+				total -= length;
+		}
+		this.size = total;
+	}
+}
@@ -0,0 +1,83 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import soot.SootMethod;
+
+/**
+ * Hash-based index over the permission-protected methods taken from the
+ * PScout result. Lookups are keyed on the Soot method so that call sites do
+ * not need to build an {@link AndroidMethod} just to compare it.
+ */
+public class SensitiveMethodIndex {
+	// Marker for Soot methods that are known not to be protected
+	private static final AndroidMethod NOT_SENSITIVE = new AndroidMethod(
+			"", "", "");
+
+	private final Map<String, AndroidMethod> methodsBySignature;
+	private final Map<SootMethod, AndroidMethod> methodsResolved;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	public SensitiveMethodIndex(Collection<AndroidMethod> methodsConcerned) {
+		this.methodsBySignature = new HashMap<String, AndroidMethod>(
+				methodsConcerned.size() * 2);
+		for (AndroidMethod method : methodsConcerned) {
+			this.methodsBySignature.put(method.getSignature(), method);
+		}
+		this.methodsResolved = new HashMap<SootMethod, AndroidMethod>();
+	}
+
+	/**
+	 * Looks up the permission-protected method corresponding to the given
+	 * Soot method
+	 *
+	 * @param sm
+	 *            The callee of an invoke statement
+	 * @return The protected method with its permissions, or null if the
+	 *         given method is not protected
+	 */
+	public AndroidMethod lookup(SootMethod sm) {
+		AndroidMethod method = this.methodsResolved.get(sm);
+		if (method == null) {
+			// Signatures are only computed once per distinct callee
+			method = this.methodsBySignature.get(sm.getSignature());
+			if (method == null) {
+				method = NOT_SENSITIVE;
+			}
+			this.methodsResolved.put(sm, method);
+		}
+
+		if (method == NOT_SENSITIVE) {
+			this.misses++;
+			return null;
+		} else {
+			this.hits++;
+			return method;
+		}
+	}
+
+	public boolean contains(String signature) {
+		return this.methodsBySignature.containsKey(signature);
+	}
+
+	public int size() {
+		return this.methodsBySignature.size();
+	}
+
+	public long getHits() {
+		return this.hits;
+	}
+
+	public long getMisses() {
+		return this.misses;
+	}
+
+	public void resetCounters() {
+		this.hits = 0;
+		this.misses = 0;
+	}
+}
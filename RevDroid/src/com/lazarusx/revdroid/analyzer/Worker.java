@@ -0,0 +1,46 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
+/**
+ * Worker process of a {@link WorkerPool}. It reads one APK path per line
+ * from its standard input and answers each of them with one result line
+ * on its standard output, consisting of the prefix, the status and the
+ * result record. Everything else printed by the analysis goes to
+ * the standard error stream so that it cannot corrupt the results.
+ */
+public class Worker {
+	// Marks the lines of the standard output which carry results
+	static final String RESULT_PREFIX = "RESULT ";
+	// Statuses of a result line, separated from the record by a space
+	static final String SUCCESS = "ok";
+	static final String FAILURE = "failed";
+
+	public static void main(String[] args) throws IOException {
+		PrintStream results = System.out;
+		System.setOut(System.err);
+
+		Configuration config = Main.createConfiguration();
+		BatchRunner runner = new BatchRunner(Main.ANDROID_PLATFORM_PATH,
+				Main.PSCOUT_RESULT_PATH, config);
+		runner.setResultCache(Main.createResultCache());
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				System.in));
+		String apkPath;
+		while ((apkPath = in.readLine()) != null) {
+			if (apkPath.isEmpty())
+				continue;
+			BatchRunner.Result result = runner.analyze(apkPath);
+			results.println(RESULT_PREFIX
+					+ (result.isSuccessful() ? SUCCESS : FAILURE) + " "
+					+ result.getRecord());
+			results.flush();
+		}
+
+		Main.printCacheStatistics(runner.getResultCache());
+	}
+}
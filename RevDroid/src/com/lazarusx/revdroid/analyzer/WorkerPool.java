@@ -0,0 +1,292 @@
+package com.lazarusx.revdroid.analyzer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Supervisor analyzing APKs in parallel with a pool of worker JVMs. Soot
+ * keeps its state in global singletons, so every worker is a separate
+ * process running {@link Worker}. APK paths are streamed to the workers
+ * over their standard input and results are read back from their standard
+ * output.
+ *
+ * A worker that exceeds the per-APK timeout is killed and replaced, as is
+ * a worker that dies. Workers are also recycled after a configurable
+ * number of APKs to avoid the effects of heap fragmentation.
+ */
+public class WorkerPool {
+	// Put into the line queue of a worker when its output ends
+	private static final String END_OF_OUTPUT = new String("EOF");
+
+	private final int workerCount;
+	private final long timeout;
+	private final String maxHeap;
+	private final int appsPerWorker;
+
+	/**
+	 * Creates a new pool
+	 *
+	 * @param workerCount
+	 *            The number of worker processes running at the same time
+	 * @param timeout
+	 *            The maximum time in milliseconds a worker may spend on one
+	 *            APK, 0 for no limit
+	 * @param maxHeap
+	 *            The maximum heap size of a worker in the format of -Xmx,
+	 *            e.g., "4g", or null for the JVM default
+	 * @param appsPerWorker
+	 *            The number of APKs after which a worker is replaced by a
+	 *            fresh one, 0 for no limit
+	 */
+	public WorkerPool(int workerCount, long timeout, String maxHeap,
+			int appsPerWorker) {
+		this.workerCount = workerCount;
+		this.timeout = timeout;
+		this.maxHeap = maxHeap;
+		this.appsPerWorker = appsPerWorker;
+	}
+
+	/**
+	 * Analyzes all given APKs and writes one result record per APK in the
+	 * order the results arrive
+	 *
+	 * @param apkPaths
+	 *            The APKs to analyze
+	 * @param out
+	 *            The stream to write the result records to
+	 * @return The number of APKs whose analysis failed
+	 * @throws InterruptedException
+	 *             Thrown if the supervisor is interrupted
+	 */
+	public int run(List<String> apkPaths, PrintStream out)
+			throws InterruptedException {
+		Queue<String> queue = new ConcurrentLinkedQueue<String>(apkPaths);
+		AtomicInteger failures = new AtomicInteger();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < this.workerCount; i++) {
+			Thread thread = new Thread(new Slot(queue, out, failures),
+					"revdroid-worker-" + i);
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		return failures.get();
+	}
+
+	private List<String> getWorkerCommand() {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java");
+		if (this.maxHeap != null)
+			command.add("-Xmx" + this.maxHeap);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+
+		// Pass on our own settings
+		for (Entry<Object, Object> entry : System.getProperties().entrySet()) {
+			String key = entry.getKey().toString();
+			if (key.startsWith("revdroid."))
+				command.add("-D" + key + "=" + entry.getValue());
+		}
+
+		command.add(Worker.class.getName());
+		return command;
+	}
+
+	private static BatchRunner.Result failure(String apkPath, String status,
+			String error, long duration) {
+		return new BatchRunner.Result(false, "{\"apk\":"
+				+ Helper.quoteJson(apkPath) + ",\"status\":"
+				+ Helper.quoteJson(status) + ",\"error\":"
+				+ Helper.quoteJson(error) + ",\"time\":" + duration + "}");
+	}
+
+	/**
+	 * Splits a result line of a worker into its status and record
+	 *
+	 * @return The result, or null if the line is malformed
+	 */
+	private static BatchRunner.Result parseResult(String line) {
+		int space = line.indexOf(' ');
+		if (space < 0)
+			return null;
+		String status = line.substring(0, space);
+		String record = line.substring(space + 1);
+		if (status.equals(Worker.SUCCESS))
+			return new BatchRunner.Result(true, record);
+		if (status.equals(Worker.FAILURE))
+			return new BatchRunner.Result(false, record);
+		return null;
+	}
+
+	/**
+	 * One slot of the pool, driving one worker process at a time
+	 */
+	private class Slot implements Runnable {
+		private final Queue<String> queue;
+		private final PrintStream out;
+		private final AtomicInteger failures;
+
+		private Process process;
+		private BufferedWriter input;
+		private BlockingQueue<String> lines;
+		private int served;
+
+		Slot(Queue<String> queue, PrintStream out, AtomicInteger failures) {
+			this.queue = queue;
+			this.out = out;
+			this.failures = failures;
+		}
+
+		@Override
+		public void run() {
+			try {
+				String apkPath;
+				while ((apkPath = this.queue.poll()) != null) {
+					BatchRunner.Result result = analyze(apkPath);
+					if (!result.isSuccessful())
+						this.failures.incrementAndGet();
+
+					synchronized (this.out) {
+						this.out.println(result.getRecord());
+						this.out.flush();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				stopWorker();
+			}
+		}
+
+		private BatchRunner.Result analyze(String apkPath)
+				throws InterruptedException {
+			long startTime = System.nanoTime();
+			try {
+				if (this.process == null)
+					startWorker();
+
+				this.input.write(apkPath);
+				this.input.newLine();
+				this.input.flush();
+
+				String line = timeout > 0 ? this.lines.poll(timeout,
+						TimeUnit.MILLISECONDS) : this.lines.take();
+				long duration = (System.nanoTime() - startTime) / 1000000;
+				if (line == null) {
+					killWorker();
+					return failure(apkPath, "timeout", "Exceeded " + timeout
+							+ " ms", duration);
+				}
+				if (line == END_OF_OUTPUT) {
+					int exitValue = killWorker();
+					return failure(apkPath, "crashed", "Worker exited with "
+							+ exitValue, duration);
+				}
+				BatchRunner.Result result = parseResult(line);
+				if (result == null) {
+					killWorker();
+					return failure(apkPath, "crashed",
+							"Malformed worker output", duration);
+				}
+
+				this.served++;
+				if (appsPerWorker > 0 && this.served >= appsPerWorker)
+					stopWorker();
+				return result;
+			} catch (IOException e) {
+				killWorker();
+				return failure(apkPath, "crashed", e.toString(),
+						(System.nanoTime() - startTime) / 1000000);
+			}
+		}
+
+		private void startWorker() throws IOException {
+			ProcessBuilder builder = new ProcessBuilder(getWorkerCommand());
+			builder.redirectError(Redirect.INHERIT);
+			this.process = builder.start();
+			this.input = new BufferedWriter(new OutputStreamWriter(
+					this.process.getOutputStream()));
+			this.served = 0;
+
+			// Forward the results of the worker to the slot
+			final BufferedReader output = new BufferedReader(
+					new InputStreamReader(this.process.getInputStream()));
+			final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+			this.lines = lines;
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						String line;
+						while ((line = output.readLine()) != null) {
+							if (line.startsWith(Worker.RESULT_PREFIX))
+								lines.add(line.substring(Worker.RESULT_PREFIX
+										.length()));
+							else
+								System.err.println(line);
+						}
+					} catch (IOException e) {
+						// The worker is gone
+					} finally {
+						lines.add(END_OF_OUTPUT);
+					}
+				}
+			}, Thread.currentThread().getName() + "-reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Lets the current worker finish by closing its input
+		 */
+		private void stopWorker() {
+			if (this.process == null)
+				return;
+
+			try {
+				this.input.close();
+				this.process.waitFor();
+			} catch (IOException e) {
+				this.process.destroy();
+			} catch (InterruptedException e) {
+				this.process.destroy();
+				Thread.currentThread().interrupt();
+			}
+			this.process = null;
+		}
+
+		/**
+		 * Kills the current worker
+		 *
+		 * @return The exit value of the worker
+		 */
+		private int killWorker() throws InterruptedException {
+			if (this.process == null)
+				return -1;
+
+			this.process.destroy();
+			int exitValue = this.process.waitFor();
+			this.process = null;
+			return exitValue;
+		}
+	}
+}